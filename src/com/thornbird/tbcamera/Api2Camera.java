@@ -24,36 +24,48 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.DngCreator;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.Face;
 import android.hardware.camera2.params.InputConfiguration;
+import android.hardware.camera2.params.OutputConfiguration;
 import android.media.Image;
 import android.media.ImageReader;
 import android.media.ImageWriter;
 import android.media.MediaActionSound;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.os.Build;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.SystemClock;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
+import android.view.SurfaceHolder;
 import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.media.Image.Plane;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.Buffer;
 import java.nio.BufferUnderflowException;
 import java.lang.IndexOutOfBoundsException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.microedition.khronos.opengles.GL10;
 
@@ -72,57 +84,187 @@ public class Api2Camera implements CameraInterface {
 
     // ImageReader/Writer buffer sizes.
     private static final int IMAGEWRITER_SIZE = 2;
+    private static final int JPEG_MAX_IMAGES = 2;
+    // JPEGs that may wait for their capture result before being saved without EXIF.
+    private static final int JPEG_MAX_PENDING_RESULTS = 4;
+    // RAW buffers are sensor sized; never hold more than this many between capture and DNG written.
+    private static final int RAW_MAX_IMAGES = 2;
+    // Analysis frames are only ever the latest, two is enough to keep the HAL from stalling.
+    private static final int ANALYSIS_MAX_IMAGES = 2;
+    // Log statistics every this many analysis frames.
+    private static final int STATS_LOG_INTERVAL = 90;
+
+    // Analysis statistics kept around so burst JPEGs can be scored against their own frame.
+    private static final int BURST_STATS_HISTORY = 8;
+    // Statistics further than this from a JPEG's timestamp belong to some other frame.
+    private static final long BURST_STATS_MAX_SKEW_NS = 50000000L;
+
+    // Mirror saved front camera JPEGs the way the preview shows them.
+    private static final boolean MIRROR_FRONT_JPEG = true;
+
+    // Configure the session before the preview Surface exists and attach it later (API 26+).
+    private static final boolean DEFERRED_PREVIEW_SURFACE = true;
 
     private CameraInfoCache mCameraInfoCache;
     private CameraManager mCameraManager;
     private CameraCaptureSession mCurrentCaptureSession;
     private MediaActionSound mMediaActionSound = new MediaActionSound();
 
-    //MyCameraCallback mMyCameraCallback;
+    MyCameraCallback mMyCameraCallback;
+
+    // Threads, budget and statistics engine; shared with other cameras open at the same time.
+    private CameraPipeline mPipeline;
+    private boolean mOwnsPipeline;
+    private StreamMetrics mStreamMetrics;
+    // Turns saved JPEGs upright for a portrait device. Saver thread only.
+    private JpegTransformer mJpegTransformer;
 
     // Generally everything running on this thread & this module is *not thread safe*.
-    private HandlerThread mOpsThread;
     private Handler mOpsHandler;
-    private HandlerThread mInitThread;
     private Handler mInitHandler;
-    private HandlerThread mJpegListenerThread;
     private Handler mJpegListenerHandler;
+    private Handler mSaverHandler;
+    private Handler mDngWriterHandler;
+    private Handler mStatsHandler;
 
     Context mContext;
     boolean mCameraIsFront;
 
     private boolean mFirstFrameArrived;
+    // Estimated preview sensor->display latency. Ops thread only.
+    private PreviewLatencyProbe mLatencyProbe;
+
+    // Initialization tasks, see buildInitGraph().
+    private static final String INIT_JPEG_READER = "jpegReader";
+    private static final String INIT_RAW_READER = "rawReader";
+    private static final String INIT_ANALYSIS_READER = "analysisReader";
+    private static final String INIT_IMAGE_LISTENERS = "imageListeners";
+    private static final String INIT_SAVER_THREAD = "saverThread";
+    private static final String INIT_DNG_THREAD = "dngWriterThread";
+    private static final String INIT_SHUTTER_SOUND = "shutterSound";
+    private static final String INIT_CAPTURE_INDEX = "captureIndex";
+    private static final String CAPTURE_INDEX_FILE = "captures.idx";
+    private InitGraph mInitGraph = new InitGraph();
+    volatile private boolean mDeferredInitDone;
+
+    private CaptureIndex mCaptureIndex;
 
     private ImageReader mJpegImageReader;
+    private CaptureBudget mCaptureBudget;
+    // Bytes reserved in the HAL stage for each outstanding still capture.
+    private long mJpegReserveBytes;
+    private CaptureResultMatcher<PendingJpeg> mJpegMatcher =
+            new CaptureResultMatcher<PendingJpeg>(JPEG_MAX_PENDING_RESULTS, new JpegMatchListener());
+    // Sensor timestamps of still captures in flight, by frame number. Ops thread only.
+    private Map<Long, Long> mStillTimestamps = new HashMap<Long, Long>();
+    // AF / precapture triggers for single stills, and the stills waiting on them. Ops thread only.
+    private PrecaptureSequencer mPrecapture;
+    private List<CaptureRequest> mWaitingStills = new ArrayList<CaptureRequest>();
+
+    private ImageReader mAnalysisImageReader;
+    // Engine shared through the pipeline; results and settings of this camera are in the client.
+    private StatisticsEngine mStatisticsEngine;
+    private final StatisticsEngine.Client mStatisticsClient = new StatisticsEngine.Client();
+    private volatile StatisticsEngine.FrameStatistics mLatestStatistics;
+    private int mAnalysisFrames;
+
+    // Current burst; frames are scored there and only the best are saved.
+    // Both written under mBurstLock; read without it.
+    private volatile BurstSelector<PendingJpeg> mBurstSelector;
+    private volatile int mBurstId;
+    private final Object mBurstLock = new Object();
+    // Burst frames not requested yet. Ops thread only.
+    private int mBurstToRequest;
+    // Burst id of each burst frame by sensor timestamp, until its JPEG is routed.
+    private Map<Long, Integer> mBurstTimestamps = Collections.synchronizedMap(new HashMap<Long, Integer>());
+    // Ring of recent analysis statistics while a burst is running. Guarded by itself.
+    private final StatisticsEngine.FrameStatistics[] mBurstStats =
+            new StatisticsEngine.FrameStatistics[BURST_STATS_HISTORY];
+    private int mBurstStatsNext;
+
+    private ImageReader mRawImageReader;
+    private long mRawReserveBytes;
+    // RAW captures from request until their DNG is written, at most RAW_MAX_IMAGES.
+    private AtomicInteger mRawInFlight = new AtomicInteger();
+    private CaptureResultMatcher<Image> mRawMatcher =
+            new CaptureResultMatcher<Image>(RAW_MAX_IMAGES, new RawMatchListener());
 
     // Starting the preview requires each of these 3 to be true/non-null:
     volatile private Surface mPreviewSurface;
     volatile private CameraDevice mCameraDevice;
     volatile boolean mAllThingsInitialized = false;
 
+    // Interval capture in progress, and the preview frame rate it wants. Ops thread only.
+    private IntervalScheduler mIntervalScheduler;
+    private Range<Integer> mPreviewFpsRange;
+    // The interval scheduler stopped preview between shots.
+    private boolean mPreviewIdle;
+
+    // Memory trim stage this camera runs at, see ResourceManager.
+    private volatile int mTrimStage = ResourceManager.TRIM_NONE;
+    // This camera's share of the HAL stage item limit. Guarded by mResource.
+    private int mHalItemShare;
+    private boolean mHalShareReleased;
+
+    // Session outputs and the request targets of each capture mode.
+    private SessionManager mSessionManager;
+    // Runs once a reconfigured session is ready. Ops thread only.
+    private Runnable mAfterReconfigure;
+
+    // Deferred preview output waiting for finalizeOutputConfigurations(). Ops thread only.
+    private OutputConfiguration mDeferredPreviewConfig;
+    private boolean mDeferredSessionStarted;
+
     /**
      * Constructor.
      */
     public Api2Camera(Context context, boolean useFrontCamera) {
+        this(context, new CameraInfoCache(getCameraManager(context), useFrontCamera), new CameraPipeline(), true);
+    }
+
+    /**
+     * A specific camera on a pipeline shared with other cameras. The caller releases the pipeline.
+     */
+    public Api2Camera(Context context, String cameraId, CameraPipeline pipeline) {
+        this(context, new CameraInfoCache(getCameraManager(context), cameraId), pipeline, false);
+    }
+
+    private Api2Camera(Context context, CameraInfoCache info, CameraPipeline pipeline, boolean ownsPipeline) {
         mContext = context;
-        mCameraIsFront = useFrontCamera;
-        mCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
-        mCameraInfoCache = new CameraInfoCache(mCameraManager, useFrontCamera);
+        mCameraManager = getCameraManager(context);
+        mCameraInfoCache = info;
+        Integer facing = info.getCharacteristics() != null
+                ? info.getCharacteristics().get(CameraCharacteristics.LENS_FACING) : null;
+        mCameraIsFront = facing != null && facing == CameraMetadata.LENS_FACING_FRONT;
+        mPipeline = pipeline;
+        mOwnsPipeline = ownsPipeline;
+        mStreamMetrics = new StreamMetrics(info.getCameraId());
+        mStreamMetrics.publish(MetricsRegistry.get());
+        mSessionManager = new SessionManager(info.isRawSupported());
+        mPrecapture = new PrecaptureSequencer(mPrecaptureTarget);
+        // The app is portrait only, so the sensor orientation is the whole rotation, front or back.
+        mJpegTransformer = new JpegTransformer(pipeline.getJpegTransformPool())
+                .setRotation(info.getSensorOrientation())
+                .setMirror(mCameraIsFront && MIRROR_FRONT_JPEG);
 
-        // Create thread and handler for camera operations.
-        mOpsThread = new HandlerThread("CameraOpsThread");
-        mOpsThread.start();
-        mOpsHandler = new Handler(mOpsThread.getLooper());
+        mCaptureBudget = pipeline.getCaptureBudget();
+        // This camera's share of the HAL stage; cameras on one pipeline add up.
+        setHalItemShare(getHalItemLimit());
+        mCaptureBudget.addListener(mBudgetListener);
+        mLatencyProbe = new PreviewLatencyProbe(mCameraInfoCache.isTimestampSourceRealtime());
 
-        // Create thread and handler for slow initialization operations.
+        // Handler for camera operations.
+        mOpsHandler = pipeline.getHandler("CameraOpsThread");
+        ResourceManager.get().register(mResource);
+
+        // Handler for slow initialization operations.
         // Don't want to use camera operations thread because we want to time camera open carefully.
-        mInitThread = new HandlerThread("CameraInitThread");
-        mInitThread.start();
-        mInitHandler = new Handler(mInitThread.getLooper());
+        mInitHandler = pipeline.getHandler("CameraInitThread");
+        buildInitGraph();
         mInitHandler.post(new Runnable() {
             @Override
             public void run() {
-                InitializeAllTheThings();
+                mInitGraph.runCritical();
                 mAllThingsInitialized = true;
                 Log.v(TAG, "STARTUP_REQUIREMENT ImageReader initialization done.");
                 tryToStartCaptureSession();
@@ -131,26 +273,128 @@ public class Api2Camera implements CameraInterface {
 
     }
 
+    private static CameraManager getCameraManager(Context context) {
+        return (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+    }
+
+    private int getHalItemLimit() {
+        return mCameraInfoCache.isRawSupported() ? JPEG_MAX_IMAGES + RAW_MAX_IMAGES : JPEG_MAX_IMAGES;
+    }
+
     // Ugh, why is this stuff so slow?
-    private void InitializeAllTheThings() {
+    // Only what the session needs gates the first preview frame, the rest waits until after it.
+    private void buildInitGraph() {
+        // Session outputs: must exist before createCaptureSession.
+        mInitGraph.add(INIT_JPEG_READER, true, new Runnable() {
+            @Override
+            public void run() {
+                // Create ImageReader to receive JPEG image buffers via reprocessing.
+                Size jpegSize = mCameraInfoCache.getYuvStream1Size();
+                mJpegImageReader = ImageReader.newInstance(
+                        jpegSize.getWidth(),
+                        jpegSize.getHeight(),
+                        ImageFormat.JPEG,
+                        JPEG_MAX_IMAGES);
+                // One byte per pixel is a safe upper bound for a compressed frame.
+                mJpegReserveBytes = (long) jpegSize.getWidth() * jpegSize.getHeight();
+            }
+        });
 
-        // Thread to handle returned JPEGs.
-        mJpegListenerThread = new HandlerThread("CameraJpegThread");
-        mJpegListenerThread.start();
-        mJpegListenerHandler = new Handler(mJpegListenerThread.getLooper());
+        // The preview request targets this stream, so it needs a listener from the start
+        // or unread buffers would stall preview.
+        mInitGraph.add(INIT_ANALYSIS_READER, true, new Runnable() {
+            @Override
+            public void run() {
+                mStatsHandler = mPipeline.getHandler("CameraStatsThread");
+                mStatisticsEngine = mPipeline.getStatisticsEngine();
 
-        // Create ImageReader to receive JPEG image buffers via reprocessing.
-        mJpegImageReader = ImageReader.newInstance(
-                mCameraInfoCache.getYuvStream1Size().getWidth(),
-                mCameraInfoCache.getYuvStream1Size().getHeight(),
-                ImageFormat.JPEG,
-                2);
-        mJpegImageReader.setOnImageAvailableListener(mJpegImageListener, mJpegListenerHandler);
+                Size analysisSize = mCameraInfoCache.getAnalysisSize();
+                mAnalysisImageReader = ImageReader.newInstance(
+                        analysisSize.getWidth(),
+                        analysisSize.getHeight(),
+                        ImageFormat.YUV_420_888,
+                        ANALYSIS_MAX_IMAGES);
+                mAnalysisImageReader.setOnImageAvailableListener(mAnalysisImageListener, mStatsHandler);
+            }
+        });
 
+        if (mCameraInfoCache.isRawSupported()) {
+            mInitGraph.add(INIT_RAW_READER, true, new Runnable() {
+                @Override
+                public void run() {
+                    Size rawSize = mCameraInfoCache.getRawSize();
+                    mRawImageReader = ImageReader.newInstance(
+                            rawSize.getWidth(),
+                            rawSize.getHeight(),
+                            ImageFormat.RAW_SENSOR,
+                            RAW_MAX_IMAGES);
+                    // 16 bits per photosite.
+                    mRawReserveBytes = (long) rawSize.getWidth() * rawSize.getHeight() * 2;
+                }
+            });
 
-        // Load click sound.
-        mMediaActionSound.load(MediaActionSound.SHUTTER_CLICK);
+            mInitGraph.add(INIT_DNG_THREAD, false, new Runnable() {
+                @Override
+                public void run() {
+                    // DNG writing gets its own thread, it is much slower than JPEG saving.
+                    mDngWriterHandler = mPipeline.getHandler("CameraDngThread");
+                }
+            });
+        }
 
+        // Nothing below is needed until the first still capture.
+        mInitGraph.add(INIT_SAVER_THREAD, false, new Runnable() {
+            @Override
+            public void run() {
+                // Thread to write JPEGs, so the listener can hand buffers back to the HAL right away.
+                mSaverHandler = mPipeline.getHandler("CameraSaverThread");
+            }
+        });
+
+        String[] listenerDeps = mInitGraph.has(INIT_RAW_READER)
+                ? new String[] {INIT_JPEG_READER, INIT_RAW_READER}
+                : new String[] {INIT_JPEG_READER};
+        mInitGraph.add(INIT_IMAGE_LISTENERS, false, new Runnable() {
+            @Override
+            public void run() {
+                // Thread to handle returned JPEGs.
+                mJpegListenerHandler = mPipeline.getHandler("CameraJpegThread");
+                mJpegImageReader.setOnImageAvailableListener(mJpegImageListener, mJpegListenerHandler);
+                if (mRawImageReader != null) {
+                    mRawImageReader.setOnImageAvailableListener(mRawImageListener, mJpegListenerHandler);
+                }
+            }
+        }, listenerDeps);
+
+        mInitGraph.add(INIT_CAPTURE_INDEX, false, new Runnable() {
+            @Override
+            public void run() {
+                // Before the first save, so the file counter can be checked against it.
+                CaptureIndex index = CameraPipeline.getCaptureIndex(new File(mContext.getFilesDir(),
+                        CAPTURE_INDEX_FILE));
+                if (index != null) {
+                    mCaptureIndex = index;
+                    MediaSaver.setCaptureIndex(index);
+                }
+            }
+        });
+
+        mInitGraph.add(INIT_SHUTTER_SOUND, false, new Runnable() {
+            @Override
+            public void run() {
+                // Load click sound.
+                mMediaActionSound.load(MediaActionSound.SHUTTER_CLICK);
+            }
+        });
+    }
+
+    // Runs after the first preview frame, or from takePicture() if that comes first.
+    private void finishDeferredInit() {
+        if (!mDeferredInitDone) {
+            mInitGraph.runDeferred();
+            mDeferredInitDone = true;
+            Log.v(TAG, "Deferred initialization done.\n" + mInitGraph.report());
+        }
     }
 
 
@@ -183,19 +427,96 @@ public class Api2Camera implements CameraInterface {
             mCameraDevice.close();
         }
         mCurrentCaptureSession = null;
-        Log.v(TAG, "Done closing camera " + mCameraInfoCache.getCameraId());
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mLatencyProbe.stop();
+                if (mIntervalScheduler != null) {
+                    mIntervalScheduler.stop();
+                }
+                mPrecapture.cancel();
+                for (CaptureRequest still : mWaitingStills) {
+                    releaseStill(hasRawTarget(still));
+                }
+                mWaitingStills.clear();
+            }
+        });
+        // Hand pending RAW buffers back before the readers go away.
+        mRawMatcher.clear();
+        BurstSelector<PendingJpeg> burst = mBurstSelector;
+        if (burst != null) {
+            burst.flush();
+        }
+        mCaptureBudget.removeListener(mBudgetListener);
+        ResourceManager.get().unregister(mResource);
+        synchronized (mResource) {
+            setHalItemShare(0);
+            mHalShareReleased = true;
+        }
+        if (mOwnsPipeline) {
+            // Work already posted, like saves in progress, still finishes.
+            mPipeline.release();
+        }
+        mStreamMetrics.unpublish(MetricsRegistry.get());
+        Log.v(TAG, "Done closing camera " + mCameraInfoCache.getCameraId() + ". " + mStreamMetrics);
+    }
+
+    @Override
+    public void setCallback(MyCameraCallback callback) {
+        mMyCameraCallback = callback;
+    }
+
+    /**
+     * Frame counters of this camera alone, even when it shares a pipeline.
+     */
+    public StreamMetrics getStreamMetrics() {
+        return mStreamMetrics;
+    }
+
+    public String getCameraId() {
+        return mCameraInfoCache.getCameraId();
+    }
+
+    @Override
+    public int getDroppedFrameCount() {
+        return mCaptureBudget.getDroppedCount();
+    }
+
+    @Override
+    public List<CaptureIndex.Entry> getRecentCaptures(int count) {
+        // Loads the index now if preview hasn't got that far yet.
+        mInitGraph.ensure(INIT_CAPTURE_INDEX);
+        CaptureIndex index = mCaptureIndex;
+        return index != null ? index.getRecent(count) : new ArrayList<CaptureIndex.Entry>();
+    }
+
+    @Override
+    public Size getPreviewSize() {
+        return mCameraInfoCache.getPreviewSize();
     }
 
     public void startPreview(final Surface surface) {
+        if (!surface.isValid()) {
+            Log.v(TAG, "startPreview() with a Surface that isn't ready yet, waiting for the next one.");
+            return;
+        }
         Log.v(TAG, "STARTUP_REQUIREMENT preview Surface ready.");
+        if (CameraTimer.t_surface_ready == 0) {
+            CameraTimer.t_surface_ready = SystemClock.elapsedRealtime();
+        }
         mPreviewSurface = surface;
         tryToStartCaptureSession();
     }
 
+    private static boolean canDeferPreviewSurface() {
+        return DEFERRED_PREVIEW_SURFACE && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
     private CameraDevice.StateCallback mCameraStateCallback = new LoggingCallbacks.DeviceStateCallback() {
         @Override
         public void onOpened(CameraDevice camera) {
             CameraTimer.t_open_end = SystemClock.elapsedRealtime();
+            MetricsRegistry.get().histogram("camera.open_ms").record(CameraTimer.t_open_end - CameraTimer.t_open_start);
             mCameraDevice = camera;
             Log.v(TAG, "STARTUP_REQUIREMENT Done opening camera " + mCameraInfoCache.getCameraId() +
                     ". HAL open took: (" + (CameraTimer.t_open_end - CameraTimer.t_open_start) + " ms)");
@@ -206,7 +527,8 @@ public class Api2Camera implements CameraInterface {
     };
 
     private void tryToStartCaptureSession() {
-        if (mCameraDevice != null && mAllThingsInitialized && mPreviewSurface != null) {
+        if (mCameraDevice != null && mAllThingsInitialized
+                && (mPreviewSurface != null || canDeferPreviewSurface())) {
             mOpsHandler.post(new Runnable() {
                 @Override
                 public void run() {
@@ -219,15 +541,43 @@ public class Api2Camera implements CameraInterface {
 
     // Create CameraCaptureSession. Callback will start repeating request with current parameters.
     private void startCaptureSession() {
+        if (mDeferredSessionStarted) {
+            // Session is already configured or configuring, it just needs the Surface.
+            finalizeDeferredPreview();
+            return;
+        }
+        if (mPreviewSurface == null) {
+            startDeferredCaptureSession();
+            return;
+        }
         CameraTimer.t_session_go = SystemClock.elapsedRealtime();
 
         Log.v(TAG, "Configuring session..");
+        int streams = mSessionManager.beginConfiguration();
         List<Surface> outputSurfaces = new ArrayList<Surface>(4);
 
         outputSurfaces.add(mPreviewSurface);
         Log.v(TAG, "  .. added SurfaceView " + mCameraInfoCache.getPreviewSize().getWidth() +
                 " x " + mCameraInfoCache.getPreviewSize().getHeight());
 
+        if ((streams & SessionManager.STREAM_JPEG) != 0) {
+            outputSurfaces.add(mJpegImageReader.getSurface());
+            Log.v(TAG, "  .. added JPEG ImageReader " + mJpegImageReader.getWidth() +
+                    " x " + mJpegImageReader.getHeight());
+        }
+
+        if ((streams & SessionManager.STREAM_ANALYSIS) != 0) {
+            outputSurfaces.add(mAnalysisImageReader.getSurface());
+            Log.v(TAG, "  .. added analysis ImageReader " + mAnalysisImageReader.getWidth() +
+                    " x " + mAnalysisImageReader.getHeight());
+        }
+
+        if (mRawImageReader != null && (streams & SessionManager.STREAM_RAW) != 0) {
+            outputSurfaces.add(mRawImageReader.getSurface());
+            Log.v(TAG, "  .. added RAW ImageReader " + mRawImageReader.getWidth() +
+                    " x " + mRawImageReader.getHeight());
+        }
+
         try {
                 mCameraDevice.createCaptureSession(outputSurfaces, mSessionStateCallback, null);
                 Log.v(TAG, "  Call to createCaptureSession complete.");
@@ -236,16 +586,111 @@ public class Api2Camera implements CameraInterface {
         }
     }
 
+    // A new session with the streams the current mode needs; next runs once it is ready. Ops thread.
+    private void reconfigureSession(Runnable next) {
+        mAfterReconfigure = next;
+        mDeferredSessionStarted = false;
+        mDeferredPreviewConfig = null;
+        startCaptureSession();
+    }
+
+    // Same outputs as startCaptureSession(), but the preview Surface is attached after configuration,
+    // so the HAL configures while the SurfaceView is still being laid out.
+    private void startDeferredCaptureSession() {
+        CameraTimer.t_session_go = SystemClock.elapsedRealtime();
+        // Per session: a Surface kept from before, e.g. across onStop()/onStart(), is ready now.
+        CameraTimer.t_surface_ready = mPreviewSurface != null ? CameraTimer.t_session_go : 0;
+        mDeferredSessionStarted = true;
+
+        Size previewSize = mCameraInfoCache.getPreviewSize();
+        Log.v(TAG, "Configuring session with deferred preview Surface " + previewSize.getWidth() +
+                " x " + previewSize.getHeight());
+        int streams = mSessionManager.beginConfiguration();
+        List<OutputConfiguration> outputs = new ArrayList<OutputConfiguration>(4);
+        mDeferredPreviewConfig = new OutputConfiguration(previewSize, SurfaceHolder.class);
+        outputs.add(mDeferredPreviewConfig);
+        if ((streams & SessionManager.STREAM_JPEG) != 0) {
+            outputs.add(new OutputConfiguration(mJpegImageReader.getSurface()));
+        }
+        if ((streams & SessionManager.STREAM_ANALYSIS) != 0) {
+            outputs.add(new OutputConfiguration(mAnalysisImageReader.getSurface()));
+        }
+        if (mRawImageReader != null && (streams & SessionManager.STREAM_RAW) != 0) {
+            outputs.add(new OutputConfiguration(mRawImageReader.getSurface()));
+        }
+
+        try {
+            mCameraDevice.createCaptureSessionByOutputConfigurations(outputs, mSessionStateCallback, null);
+            Log.v(TAG, "  Call to createCaptureSessionByOutputConfigurations complete.");
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Error configuring ISP.");
+        }
+    }
+
+    // Attach the preview Surface once both it and the session exist, then start preview.
+    private void finalizeDeferredPreview() {
+        if (mDeferredPreviewConfig == null || mPreviewSurface == null || mCurrentCaptureSession == null) {
+            return;
+        }
+        try {
+            mDeferredPreviewConfig.addSurface(mPreviewSurface);
+            mCurrentCaptureSession.finalizeOutputConfigurations(Arrays.asList(mDeferredPreviewConfig));
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Could not finalize deferred preview Surface.");
+            return;
+        }
+        mDeferredPreviewConfig = null;
+        CameraTimer.t_session_finalized = SystemClock.elapsedRealtime();
+        // Configuration that ran before the Surface showed up is time the serial path would have added.
+        long overlap = Math.min(CameraTimer.t_session_configured, CameraTimer.t_surface_ready)
+                - CameraTimer.t_session_go;
+        Log.v(TAG, String.format("Deferred preview: session go +%d ms, configured +%d ms, surface +%d ms, " +
+                        "finalized +%d ms (since onCreate). Overlap saved: %d ms",
+                CameraTimer.t_session_go - CameraTimer.t0, CameraTimer.t_session_configured - CameraTimer.t0,
+                CameraTimer.t_surface_ready - CameraTimer.t0, CameraTimer.t_session_finalized - CameraTimer.t0,
+                Math.max(0, overlap)));
+        issuePreviewCaptureRequest(false);
+    }
+
     ImageWriter mImageWriter;
 
     private CameraCaptureSession.StateCallback mSessionStateCallback = new LoggingCallbacks.SessionStateCallback() {
+        @Override
+        public void onConfigured(CameraCaptureSession session) {
+            mSessionManager.onConfigured();
+            super.onConfigured(session);
+        }
+
+        @Override
+        public void onConfigureFailed(CameraCaptureSession session) {
+            super.onConfigureFailed(session);
+            if (mSessionManager.onConfigureFailed() != 0) {
+                mOpsHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Again, one optional stream fewer.
+                        mDeferredSessionStarted = false;
+                        mDeferredPreviewConfig = null;
+                        startCaptureSession();
+                    }
+                });
+            }
+        }
+
         @Override
         public void onReady(CameraCaptureSession session) {
             Log.v(TAG, "capture session onReady().  HAL capture session took: (" + (SystemClock.elapsedRealtime() - CameraTimer.t_session_go) + " ms)");
+            // onReady() also runs whenever the session drains, e.g. after a still or stopRepeating().
+            boolean newSession = session != mCurrentCaptureSession;
             mCurrentCaptureSession = session;
-            issuePreviewCaptureRequest(false);
+            if (mDeferredPreviewConfig != null) {
+                CameraTimer.t_session_configured = SystemClock.elapsedRealtime();
+                finalizeDeferredPreview();
+            } else if (newSession && !mPreviewIdle) {
+                issuePreviewCaptureRequest(false);
+            }
 
-            if (session.isReprocessable()) {
+            if (newSession && session.isReprocessable()) {
                 mImageWriter = ImageWriter.newInstance(session.getInputSurface(), IMAGEWRITER_SIZE);
                 mImageWriter.setOnImageReleasedListener(
                         new ImageWriter.OnImageReleasedListener() {
@@ -256,24 +701,615 @@ public class Api2Camera implements CameraInterface {
                         }, null);
                 Log.v(TAG, "Created ImageWriter.");
             }
+            if (mAfterReconfigure != null && mDeferredPreviewConfig == null) {
+                Runnable next = mAfterReconfigure;
+                mAfterReconfigure = null;
+                next.run();
+            }
             super.onReady(session);
         }
     };
 
 
+    // Targets and settings of preview, for the repeating request and the trigger requests on top of it.
+    private CaptureRequest.Builder createPreviewRequest() throws CameraAccessException {
+        CaptureRequest.Builder b1 = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+        b1.addTarget(mPreviewSurface);
+        if (mIntervalScheduler == null && mTrimStage < ResourceManager.TRIM_LOW
+                && mSessionManager.has(SessionManager.STREAM_ANALYSIS)) {
+            b1.addTarget(mAnalysisImageReader.getSurface());
+        }
+        if (mPreviewFpsRange != null) {
+            b1.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mPreviewFpsRange);
+        }
+        return b1;
+    }
+
+    // AFtrigger: also start an AF scan once the new preview request is in.
     public void issuePreviewCaptureRequest(boolean AFtrigger) {
         CameraTimer.t_burst = SystemClock.elapsedRealtime();
         Log.v(TAG, "issuePreviewCaptureRequest...");
         try {
-            CaptureRequest.Builder b1 = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            b1.addTarget(mPreviewSurface);
-
+            CaptureRequest.Builder b1 = createPreviewRequest();
             mCurrentCaptureSession.setRepeatingRequest(b1.build(), mCaptureCallback, mOpsHandler);
+            mStreamMetrics.onPreviewRestarted();
+            if (mSessionManager.getMode() == SessionManager.MODE_PREVIEW) {
+                mSessionManager.onModeApplied();
+            }
+            mLatencyProbe.start();
         } catch (CameraAccessException e) {
             Log.e(TAG, "Could not access camera for issuePreviewCaptureRequest.");
+            return;
+        }
+        if (AFtrigger) {
+            issueTriggerRequest(CaptureRequest.CONTROL_AF_TRIGGER_START, false, null);
+        }
+    }
+
+    // One request on top of preview carrying 3A triggers; a repeating one would re-trigger every frame.
+    private void issueTriggerRequest(int afTrigger, boolean precaptureTrigger, Object tag) {
+        if (mCurrentCaptureSession == null) {
+            return;
+        }
+        try {
+            CaptureRequest.Builder b1 = createPreviewRequest();
+            b1.set(CaptureRequest.CONTROL_AF_TRIGGER, afTrigger);
+            if (precaptureTrigger) {
+                b1.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
+                        CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
+            }
+            b1.setTag(tag);
+            mCurrentCaptureSession.capture(b1.build(), mCaptureCallback, mOpsHandler);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Could not access camera for 3A triggers.");
+        }
+    }
+
+
+    @Override
+    public boolean takePicture() {
+        return captureStill(-1);
+    }
+
+    // One still, with RAW if there is room. intervalIndex is the interval frame, or -1.
+    private boolean captureStill(int intervalIndex) {
+        if (mCurrentCaptureSession == null) {
+            Log.e(TAG, "takePicture() without a capture session.");
+            return false;
+        }
+        finishDeferredInit();
+        int mode = intervalIndex < 0 ? SessionManager.MODE_STILL : SessionManager.MODE_INTERVAL;
+        if (mSessionManager.setMode(mode)) {
+            final int index = intervalIndex;
+            mOpsHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    reconfigureSession(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mSessionManager.has(SessionManager.STREAM_JPEG)) {
+                                captureStill(index);
+                            } else {
+                                Log.e(TAG, "No JPEG stream even after reconfiguring, still not taken.");
+                            }
+                        }
+                    });
+                }
+            });
+            return true;
+        }
+        if (!mCaptureBudget.tryAcquire(CaptureBudget.STAGE_HAL, mJpegReserveBytes)) {
+            Log.v(TAG, "takePicture() held back: " + mCaptureBudget);
+            return false;
+        }
+        boolean withRaw = (mSessionManager.getTargets(mode) & SessionManager.STREAM_RAW) != 0 && reserveRaw();
+        // Single shots wait for 3A; interval shots had their warmup and keep to their schedule.
+        final PrecaptureSequencer.Shot shot = intervalIndex < 0 ? new PrecaptureSequencer.Shot() : null;
+        final CaptureRequest still;
+        try {
+            CaptureRequest.Builder b1 = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            b1.addTarget(mPreviewSurface);
+            b1.addTarget(mJpegImageReader.getSurface());
+            if (withRaw) {
+                b1.addTarget(mRawImageReader.getSurface());
+            }
+            b1.setTag(new StillTag(withRaw, 0, intervalIndex, shot));
+            still = b1.build();
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Could not access camera for takePicture.");
+            releaseStill(withRaw);
+            return false;
+        }
+        if (shot == null) {
+            return submitStill(still);
+        }
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mWaitingStills.add(still);
+                mPrecapture.request(shot);
+            }
+        });
+        return true;
+    }
+
+    // Ops thread.
+    private boolean submitStill(CaptureRequest still) {
+        StillTag tag = (StillTag) still.getTag();
+        if (mCurrentCaptureSession == null) {
+            releaseStill(tag.withRaw);
+            return false;
+        }
+        try {
+            mCurrentCaptureSession.capture(still, mStillCaptureCallback, mOpsHandler);
+            mSessionManager.onModeApplied();
+            mStreamMetrics.onStillRequested();
+            if (tag.intervalIndex < 0) {
+                mMediaActionSound.play(MediaActionSound.SHUTTER_CLICK);
+            }
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Could not access camera for takePicture.");
+            releaseStill(tag.withRaw);
+            return false;
+        }
+        return true;
+    }
+
+    // Gives back what captureStill() reserved for a still that won't be taken.
+    private void releaseStill(boolean withRaw) {
+        mCaptureBudget.release(CaptureBudget.STAGE_HAL, mJpegReserveBytes);
+        if (withRaw) {
+            releaseRaw(CaptureBudget.STAGE_HAL, false);
+        }
+    }
+
+    // Ops thread.
+    private PrecaptureSequencer.Target mPrecaptureTarget = new PrecaptureSequencer.Target() {
+        @Override
+        public void sendTriggers(boolean afTrigger, boolean precaptureTrigger) {
+            int af = afTrigger ? CaptureRequest.CONTROL_AF_TRIGGER_START : CaptureRequest.CONTROL_AF_TRIGGER_IDLE;
+            issueTriggerRequest(af, precaptureTrigger, PrecaptureSequencer.TRIGGER_TAG);
+        }
+
+        @Override
+        public void fire() {
+            for (CaptureRequest still : mWaitingStills) {
+                submitStill(still);
+            }
+            mWaitingStills.clear();
+        }
+
+        @Override
+        public void releaseFocus() {
+            issueTriggerRequest(CaptureRequest.CONTROL_AF_TRIGGER_CANCEL, false, null);
+        }
+    };
+
+    // RAW rides along with the JPEG only while there is room for another sensor-sized buffer.
+    private boolean reserveRaw() {
+        if (mRawImageReader == null) {
+            return false;
+        }
+        if (mTrimStage >= ResourceManager.TRIM_LOW) {
+            Log.v(TAG, "RAW skipped, memory is low.");
+            return false;
+        }
+        if (mRawInFlight.incrementAndGet() > RAW_MAX_IMAGES) {
+            mRawInFlight.decrementAndGet();
+            Log.v(TAG, "RAW skipped, " + RAW_MAX_IMAGES + " RAW captures already in flight.");
+            return false;
+        }
+        if (!mCaptureBudget.tryAcquire(CaptureBudget.STAGE_HAL, mRawReserveBytes)) {
+            mRawInFlight.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void releaseRaw(int stage, boolean dropped) {
+        if (dropped) {
+            mCaptureBudget.drop(stage, mRawReserveBytes);
+        } else {
+            mCaptureBudget.release(stage, mRawReserveBytes);
+        }
+        mRawInFlight.decrementAndGet();
+    }
+
+    @Override
+    public boolean takeBurst(int frames, int keep) {
+        if (mCurrentCaptureSession == null) {
+            Log.e(TAG, "takeBurst() without a capture session.");
+            return false;
+        }
+        finishDeferredInit();
+        synchronized (mBurstStats) {
+            Arrays.fill(mBurstStats, null);
+            mBurstStatsNext = 0;
+        }
+        BurstSelector<PendingJpeg> previous;
+        final int burstId;
+        synchronized (mBurstLock) {
+            previous = mBurstSelector;
+            burstId = mBurstId + 1;
+            BurstListener listener = new BurstListener(burstId);
+            listener.mSelector = new BurstSelector<PendingJpeg>(frames, keep, listener);
+            mBurstId = burstId;
+            mBurstSelector = listener.mSelector;
+        }
+        if (previous != null) {
+            // Whatever is left of the last burst is decided now.
+            previous.flush();
+        }
+        Log.v(TAG, "Burst " + burstId + ": " + frames + " frames, keeping " + keep);
+        final int count = frames;
+        final boolean reconfigure = mSessionManager.setMode(SessionManager.MODE_BURST);
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mBurstToRequest = count;
+                mMediaActionSound.play(MediaActionSound.SHUTTER_CLICK);
+                if (reconfigure) {
+                    reconfigureSession(new Runnable() {
+                        @Override
+                        public void run() {
+                            pumpBurst();
+                        }
+                    });
+                } else {
+                    pumpBurst();
+                }
+            }
+        });
+        return true;
+    }
+
+    // Request burst frames while the HAL stage has room. Called again whenever room frees up,
+    // so a long burst never has more than the budget allows in flight. Ops thread.
+    private void pumpBurst() {
+        while (mBurstToRequest > 0 && mCurrentCaptureSession != null
+                && mSessionManager.has(SessionManager.STREAM_JPEG)) {
+            if (!mCaptureBudget.tryAcquire(CaptureBudget.STAGE_HAL, mJpegReserveBytes)) {
+                return;
+            }
+            try {
+                CaptureRequest.Builder b1 = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+                b1.addTarget(mPreviewSurface);
+                b1.addTarget(mJpegImageReader.getSurface());
+                // Scored from the statistics of the same frame.
+                if (mSessionManager.has(SessionManager.STREAM_ANALYSIS)) {
+                    b1.addTarget(mAnalysisImageReader.getSurface());
+                }
+                int faceMode = mCameraInfoCache.getBestFaceDetectMode();
+                if (faceMode != CameraMetadata.STATISTICS_FACE_DETECT_MODE_OFF) {
+                    b1.set(CaptureRequest.STATISTICS_FACE_DETECT_MODE, faceMode);
+                }
+                b1.setTag(new StillTag(false, mBurstId, -1, null));
+                mCurrentCaptureSession.capture(b1.build(), mStillCaptureCallback, mOpsHandler);
+                mSessionManager.onModeApplied();
+                mStreamMetrics.onStillRequested();
+                mBurstToRequest--;
+            } catch (CameraAccessException e) {
+                Log.e(TAG, "Could not access camera for burst frame.");
+                mCaptureBudget.release(CaptureBudget.STAGE_HAL, mJpegReserveBytes);
+                burstFrameLost(mBurstId);
+                mBurstToRequest--;
+            }
+        }
+    }
+
+    private void postPumpBurst() {
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                pumpBurst();
+            }
+        });
+    }
+
+    private void burstFrameLost(int burstId) {
+        BurstSelector<PendingJpeg> burst = mBurstSelector;
+        if (burst != null && burstId == mBurstId) {
+            burst.frameLost();
+        }
+    }
+
+    // What a still request carries in its tag.
+    private static class StillTag {
+        final boolean withRaw;
+        // 0 for single shots.
+        final int burstId;
+        // Frame of an interval capture, -1 otherwise.
+        final int intervalIndex;
+        // Shutter lag timing of a single shot, null otherwise.
+        final PrecaptureSequencer.Shot shot;
+
+        StillTag(boolean withRaw, int burstId, int intervalIndex, PrecaptureSequencer.Shot shot) {
+            this.withRaw = withRaw;
+            this.burstId = burstId;
+            this.intervalIndex = intervalIndex;
+            this.shot = shot;
+        }
+    }
+
+    private static boolean hasRawTarget(CaptureRequest request) {
+        Object tag = request.getTag();
+        return tag instanceof StillTag && ((StillTag) tag).withRaw;
+    }
+
+    private static int getBurstId(CaptureRequest request) {
+        Object tag = request.getTag();
+        return tag instanceof StillTag ? ((StillTag) tag).burstId : 0;
+    }
+
+    private static int getIntervalIndex(CaptureRequest request) {
+        Object tag = request.getTag();
+        return tag instanceof StillTag ? ((StillTag) tag).intervalIndex : -1;
+    }
+
+    private static PrecaptureSequencer.Shot getShot(CaptureRequest request) {
+        Object tag = request.getTag();
+        return tag instanceof StillTag ? ((StillTag) tag).shot : null;
+    }
+
+    @Override
+    public boolean startIntervalCapture(final long intervalMs, final int frameCount) {
+        if (mCurrentCaptureSession == null) {
+            Log.e(TAG, "startIntervalCapture() without a capture session.");
+            return false;
         }
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mIntervalScheduler != null) {
+                    mIntervalScheduler.stop();
+                }
+                mIntervalScheduler = new IntervalScheduler(mOpsHandler, mIntervalTarget, intervalMs, frameCount);
+                mIntervalScheduler.start();
+            }
+        });
+        return true;
     }
 
+    @Override
+    public void stopIntervalCapture() {
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mIntervalScheduler != null) {
+                    mIntervalScheduler.stop();
+                }
+            }
+        });
+    }
+
+    private void setHalItemShare(int share) {
+        synchronized (mResource) {
+            if (mHalShareReleased) {
+                return;
+            }
+            mCaptureBudget.addStageItemLimit(CaptureBudget.STAGE_HAL, share - mHalItemShare);
+            mHalItemShare = share;
+        }
+    }
+
+    private static long readerBytes(ImageReader reader, long bytesPerImage) {
+        return reader != null ? reader.getMaxImages() * bytesPerImage : 0;
+    }
+
+    private long analysisImageBytes() {
+        ImageReader reader = mAnalysisImageReader;
+        return reader != null ? (long) reader.getWidth() * reader.getHeight() * 3 / 2 : 0;
+    }
+
+    // Frees gralloc buffers no Image holds right now (API 28+).
+    private static boolean discardFreeBuffers(ImageReader reader) {
+        if (reader == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+            return false;
+        }
+        reader.discardFreeBuffers();
+        return true;
+    }
+
+    // Image readers and in-flight stills. Moderate: idle JPEG/RAW buffers go. Low: one still in
+    // flight at a time, no RAW, no analysis stream. Critical: a running burst is decided now.
+    private final ResourceManager.Resource mResource = new ResourceManager.Resource() {
+        @Override
+        public String getName() {
+            return "camera " + mCameraInfoCache.getCameraId();
+        }
+
+        @Override
+        public long getBytes() {
+            return readerBytes(mJpegImageReader, mJpegReserveBytes) + readerBytes(mRawImageReader, mRawReserveBytes)
+                    + readerBytes(mAnalysisImageReader, analysisImageBytes());
+        }
+
+        @Override
+        public long trim(final int stage) {
+            mTrimStage = stage;
+            mOpsHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    applyTrimStage(stage);
+                }
+            });
+            // Nothing is freed yet; applyTrimStage() logs what it discards.
+            return 0;
+        }
+    };
+
+    private int mAppliedTrimStage = ResourceManager.TRIM_NONE;
+
+    // Ops thread.
+    private void applyTrimStage(int stage) {
+        int previous = mAppliedTrimStage;
+        if (stage == previous) {
+            return;
+        }
+        mAppliedTrimStage = stage;
+        String id = mCameraInfoCache.getCameraId();
+
+        int share = stage >= ResourceManager.TRIM_LOW ? 1 : getHalItemLimit();
+        if (share != mHalItemShare) {
+            setHalItemShare(share);
+            Log.v(TAG, "Camera " + id + ": " + share + " stills in flight at most.");
+        }
+        // ImageReader doesn't say how many buffers it freed; the estimate assumes none was held.
+        if (stage >= ResourceManager.TRIM_MODERATE && previous < ResourceManager.TRIM_MODERATE
+                && (discardFreeBuffers(mJpegImageReader) | discardFreeBuffers(mRawImageReader))) {
+            Log.v(TAG, "Camera " + id + ": discarded idle JPEG/RAW buffers, estimated at most "
+                    + (readerBytes(mJpegImageReader, mJpegReserveBytes)
+                            + readerBytes(mRawImageReader, mRawReserveBytes)) + " bytes.");
+        }
+        boolean analysisWasOn = previous < ResourceManager.TRIM_LOW;
+        boolean analysisOn = stage < ResourceManager.TRIM_LOW;
+        if (analysisWasOn != analysisOn && mCurrentCaptureSession != null && mDeferredPreviewConfig == null
+                && mIntervalScheduler == null) {
+            issuePreviewCaptureRequest(false);
+            Log.v(TAG, "Camera " + id + ": analysis stream " + (analysisOn ? "back on." : "off."));
+        }
+        if (!analysisOn && discardFreeBuffers(mAnalysisImageReader)) {
+            Log.v(TAG, "Camera " + id + ": discarded idle analysis buffers, estimated at most "
+                    + readerBytes(mAnalysisImageReader, analysisImageBytes()) + " bytes.");
+        }
+        if (stage >= ResourceManager.TRIM_CRITICAL) {
+            BurstSelector<PendingJpeg> burst = mBurstSelector;
+            if (burst != null && mBurstToRequest > 0) {
+                Log.v(TAG, "Camera " + id + ": burst cut short by " + mBurstToRequest + " frames.");
+                mBurstToRequest = 0;
+                burst.flush();
+            }
+        }
+    }
+
+    // Ops thread.
+    private IntervalScheduler.Target mIntervalTarget = new IntervalScheduler.Target() {
+        @Override
+        public void setIdle(boolean idle) {
+            if (mCurrentCaptureSession == null) {
+                return;
+            }
+            mPreviewIdle = idle;
+            if (idle) {
+                try {
+                    mCurrentCaptureSession.stopRepeating();
+                    mStreamMetrics.onPreviewRestarted();
+                } catch (CameraAccessException e) {
+                    Log.e(TAG, "Could not stop preview for interval capture.");
+                }
+            } else {
+                mPreviewFpsRange = mCameraInfoCache.getLowestFpsRange();
+                issuePreviewCaptureRequest(false);
+            }
+        }
+
+        @Override
+        public boolean captureFrame(int index) {
+            return captureStill(index);
+        }
+
+        @Override
+        public void onIntervalCaptureDone() {
+            mIntervalScheduler = null;
+            mPreviewFpsRange = null;
+            mPreviewIdle = false;
+            mSessionManager.setMode(SessionManager.MODE_PREVIEW);
+            if (mCurrentCaptureSession != null) {
+                issuePreviewCaptureRequest(false);
+            }
+        }
+    };
+
+    private CameraCaptureSession.CaptureCallback mStillCaptureCallback = new LoggingCallbacks.SessionCaptureCallback() {
+        @Override
+        public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request, long timestamp, long frameNumber) {
+            mStillTimestamps.put(frameNumber, timestamp);
+            PrecaptureSequencer.Shot shot = getShot(request);
+            if (shot != null) {
+                mPrecapture.onExposureStarted(shot, timestamp);
+            }
+            int burstId = getBurstId(request);
+            if (burstId != 0) {
+                mBurstTimestamps.put(timestamp, burstId);
+            }
+            super.onCaptureStarted(session, request, timestamp, frameNumber);
+        }
+
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
+            mStillTimestamps.remove(result.getFrameNumber());
+            long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            int intervalIndex = getIntervalIndex(request);
+            if (intervalIndex >= 0 && mIntervalScheduler != null) {
+                mIntervalScheduler.onFrameCaptured(intervalIndex, timestamp);
+            }
+            mJpegMatcher.addResult(timestamp, result);
+            if (hasRawTarget(request)) {
+                mRawMatcher.addResult(timestamp, result);
+            }
+            super.onCaptureCompleted(session, request, result);
+        }
+
+        @Override
+        public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
+            Long timestamp = mStillTimestamps.remove(failure.getFrameNumber());
+            int intervalIndex = getIntervalIndex(request);
+            if (intervalIndex >= 0 && mIntervalScheduler != null) {
+                mIntervalScheduler.onFrameCaptured(intervalIndex, -1);
+            }
+            if (!failure.wasImageCaptured()) {
+                mStreamMetrics.onStillFailed();
+                mCaptureBudget.drop(CaptureBudget.STAGE_HAL, mJpegReserveBytes);
+                if (hasRawTarget(request)) {
+                    releaseRaw(CaptureBudget.STAGE_HAL, true);
+                }
+                if (timestamp != null) {
+                    mBurstTimestamps.remove(timestamp);
+                }
+                burstFrameLost(getBurstId(request));
+                pumpBurst();
+            } else if (timestamp != null) {
+                // The JPEG may still show up; save it without EXIF. RAW can't be written without metadata.
+                mJpegMatcher.addResult(timestamp, null);
+                if (hasRawTarget(request)) {
+                    mRawMatcher.addResult(timestamp, null);
+                }
+            }
+            super.onCaptureFailed(session, request, failure);
+        }
+
+        @Override
+        public void onCaptureBufferLost(CameraCaptureSession session, CaptureRequest request, Surface target, long frameNumber) {
+            if (target == mJpegImageReader.getSurface()) {
+                mStreamMetrics.onStillFailed();
+                mCaptureBudget.drop(CaptureBudget.STAGE_HAL, mJpegReserveBytes);
+                burstFrameLost(getBurstId(request));
+                pumpBurst();
+            } else if (mRawImageReader != null && target == mRawImageReader.getSurface()) {
+                releaseRaw(CaptureBudget.STAGE_HAL, true);
+            }
+            super.onCaptureBufferLost(session, request, target, frameNumber);
+        }
+    };
+
+    private CaptureBudget.Listener mBudgetListener = new CaptureBudget.Listener() {
+        @Override
+        public void onBackpressure(boolean throttled, long bytesInFlight) {
+            if (!throttled) {
+                postPumpBurst();
+            }
+            if (mMyCameraCallback != null) {
+                mMyCameraCallback.backpressureChanged(throttled, bytesInFlight);
+            }
+        }
+
+        @Override
+        public void onFrameDropped(int stage, int totalDropped) {
+            if (mMyCameraCallback != null) {
+                mMyCameraCallback.frameDropped(totalDropped);
+            }
+        }
+    };
 
     /*********************************
      * onImageAvailable() processing *
@@ -282,7 +1318,8 @@ public class Api2Camera implements CameraInterface {
             new ImageReader.OnImageAvailableListener() {
                 @Override
                 public void onImageAvailable(ImageReader reader) {
-                    Image img = reader.acquireLatestImage();
+                    // Next, not latest: every reserved capture has to be accounted for.
+                    Image img = reader.acquireNextImage();
                     if (img == null) {
                         Log.e(TAG, "Null image returned JPEG");
                         return;
@@ -291,7 +1328,9 @@ public class Api2Camera implements CameraInterface {
                     final ByteBuffer buffer = plane0.getBuffer();
                     Log.v(TAG, String.format("JPEG buffer available, w=%d h=%d time=%d size=%d ",
                             img.getWidth(), img.getHeight(), img.getTimestamp(), buffer.capacity()));
-                    // Save JPEG on the utility thread,
+                    final long size = buffer.capacity();
+                    mCaptureBudget.transfer(CaptureBudget.STAGE_HAL, mJpegReserveBytes,
+                            CaptureBudget.STAGE_LISTENER, size);
                     final byte[] jpegBuf;
                     if (buffer.hasArray()) {
                         jpegBuf = buffer.array();
@@ -299,24 +1338,352 @@ public class Api2Camera implements CameraInterface {
                         jpegBuf = new byte[buffer.capacity()];
                         buffer.get(jpegBuf);
                     }
-                    //mMyCameraCallback.jpegAvailable(jpegBuf, img.getWidth(), img.getHeight());
+                    long timestamp = img.getTimestamp();
+                    PendingJpeg jpeg = new PendingJpeg(jpegBuf, img.getWidth(), img.getHeight(), size, timestamp);
                     img.close();
+                    mPrecapture.onJpegAvailable(timestamp);
+                    if (mBurstTimestamps.containsKey(timestamp)) {
+                        // A HAL slot just freed up (transfer() above lifts a throttle that only
+                        // waited for one), request the next burst frame.
+                        postPumpBurst();
+                    }
+                    if (mMyCameraCallback != null) {
+                        mMyCameraCallback.jpegAvailable(jpegBuf, jpeg.width, jpeg.height);
+                    }
 
-                    // take (reprocess) another picture right away if bursting.
+                    // Saved once its capture result shows up, see JpegMatchListener.
+                    mJpegMatcher.addItem(timestamp, jpeg);
                 }
             };
 
+    private static class PendingJpeg {
+        final byte[] data;
+        final int width;
+        final int height;
+        final long size;
+        final long timestamp;
+        // Set once the capture result is known.
+        ExifWriter exif;
+
+        PendingJpeg(byte[] data, int width, int height, long size, long timestamp) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.size = size;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private class JpegMatchListener implements CaptureResultMatcher.Listener<PendingJpeg> {
+        @Override
+        public void onMatched(PendingJpeg jpeg, TotalCaptureResult result) {
+            ExifWriter exif = null;
+            if (result != null) {
+                exif = ExifWriter.fromCaptureResult(result,
+                        sensorTimeToWallClock(result.get(CaptureResult.SENSOR_TIMESTAMP)));
+            }
+            jpeg.exif = exif;
+            if (!offerToBurst(jpeg, result)) {
+                save(jpeg);
+            }
+        }
+
+        @Override
+        public void onUnmatched(PendingJpeg jpeg) {
+            Log.w(TAG, "No capture result for JPEG, saving without EXIF.");
+            if (!offerToBurst(jpeg, null)) {
+                save(jpeg);
+            }
+        }
+
+        // Hand a burst frame to its selector instead of saving it. False for single shots and
+        // for frames whose burst has already been decided.
+        private boolean offerToBurst(PendingJpeg jpeg, TotalCaptureResult result) {
+            Integer burstId = mBurstTimestamps.remove(jpeg.timestamp);
+            BurstSelector<PendingJpeg> burst = mBurstSelector;
+            if (burstId == null || burst == null || burstId != mBurstId) {
+                return false;
+            }
+            long exposureNs = 0;
+            int faces = 0;
+            if (result != null) {
+                Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+                exposureNs = exposure != null ? exposure : 0;
+                Face[] detected = result.get(CaptureResult.STATISTICS_FACES);
+                faces = detected != null ? detected.length : 0;
+            }
+            burst.offer(jpeg, jpeg.timestamp, findBurstStatistics(jpeg.timestamp), exposureNs, faces);
+            return true;
+        }
+    }
+
+    // Save JPEG on the saver thread.
+    private void save(final PendingJpeg jpeg) {
+        mCaptureBudget.transfer(CaptureBudget.STAGE_LISTENER, jpeg.size,
+                CaptureBudget.STAGE_SAVER, jpeg.size);
+        mSaverHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                byte[] data = jpeg.data;
+                int width = jpeg.width;
+                int height = jpeg.height;
+                ExifWriter exif = jpeg.exif;
+                // The HAL's Exif APP1 gets replaced; keep its thumbnail.
+                byte[] thumbnail = ExifWriter.extractThumbnail(data, data.length);
+                if (!mJpegTransformer.isIdentity()) {
+                    try {
+                        data = mJpegTransformer.transform(jpeg.data, jpeg.data.length);
+                        width = mJpegTransformer.getOutputWidth();
+                        height = mJpegTransformer.getOutputHeight();
+                        if (exif == null) {
+                            // No result to build Exif from, but the HAL's APP1 still has the old
+                            // orientation and thumbnail; replace it.
+                            exif = new ExifWriter();
+                        }
+                        // Pixels are upright now; don't let viewers rotate them again.
+                        exif.setOrientation(0);
+                        Log.v(TAG, String.format("JPEG transformed losslessly to %dx%d in %.1f ms",
+                                width, height, mJpegTransformer.getLastTransformNanos() / 1e6));
+                        MetricsRegistry.get().histogram("jpeg.transform_ms")
+                                .record(mJpegTransformer.getLastTransformNanos() / 1e6);
+                        thumbnail = transformThumbnail(thumbnail);
+                    } catch (IOException | RuntimeException e) {
+                        // A corrupt JPEG from the HAL still gets saved as it came.
+                        Log.e(TAG, "Could not transform JPEG, saving it as is: " + e);
+                    }
+                }
+                if (exif != null) {
+                    exif.setThumbnail(thumbnail);
+                }
+                String filename = MediaSaver.saveJpeg(mContext, data, width, height,
+                        exif, mContext.getContentResolver());
+                if (filename.isEmpty()) {
+                    mStreamMetrics.onStillFailed();
+                    mCaptureBudget.drop(CaptureBudget.STAGE_SAVER, jpeg.size);
+                } else {
+                    mStreamMetrics.onStillSaved();
+                    mCaptureBudget.release(CaptureBudget.STAGE_SAVER, jpeg.size);
+                }
+            }
+        });
+    }
+
+    // The thumbnail turned like the main image, or null if it can't be: a sideways thumbnail
+    // would disagree with the upright image. Saver thread.
+    private byte[] transformThumbnail(byte[] thumbnail) {
+        if (thumbnail == null) {
+            return null;
+        }
+        try {
+            return mJpegTransformer.transform(thumbnail, thumbnail.length);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not transform the Exif thumbnail, leaving it out: " + e);
+            return null;
+        }
+    }
+
+    private class BurstListener implements BurstSelector.Listener<PendingJpeg> {
+        private final int mId;
+        // The selector this listens to, set before it is published.
+        BurstSelector<PendingJpeg> mSelector;
+
+        BurstListener(int id) {
+            mId = id;
+        }
+
+        @Override
+        public void onKeep(PendingJpeg jpeg, BurstSelector.Candidate candidate) {
+            save(jpeg);
+        }
+
+        @Override
+        public void onCull(PendingJpeg jpeg, BurstSelector.Candidate candidate) {
+            // Never written; the bytes leave the pipeline here.
+            mStreamMetrics.onStillCulled();
+            mCaptureBudget.release(CaptureBudget.STAGE_LISTENER, jpeg.size);
+        }
+
+        @Override
+        public void onBurstDone(final List<BurstSelector.Candidate> candidates) {
+            int kept = 0;
+            final StringBuilder sb = new StringBuilder();
+            sb.append("{\"burst\":").append(mId).append(",\"frames\":[\n");
+            for (int i = 0; i < candidates.size(); i++) {
+                BurstSelector.Candidate c = candidates.get(i);
+                kept += c.kept ? 1 : 0;
+                sb.append("  ").append(c).append(i + 1 < candidates.size() ? ",\n" : "\n");
+            }
+            sb.append("]}\n");
+            Log.v(TAG, "Burst " + mId + " done: kept " + kept + " of " + candidates.size() + " frames.");
+            synchronized (mBurstLock) {
+                // Stops statistics being copied for bursts, unless a newer burst took over.
+                if (mBurstSelector == mSelector) {
+                    mBurstSelector = null;
+                }
+            }
+            mSaverHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    MediaSaver.saveSidecar(mContext, sb.toString());
+                }
+            });
+        }
+    }
+
+    // Statistics of the analysis frame closest to a burst JPEG, null if none is close enough.
+    private StatisticsEngine.FrameStatistics findBurstStatistics(long timestamp) {
+        synchronized (mBurstStats) {
+            StatisticsEngine.FrameStatistics best = null;
+            for (StatisticsEngine.FrameStatistics s : mBurstStats) {
+                if (s != null && Math.abs(s.timestampNs - timestamp) <= BURST_STATS_MAX_SKEW_NS
+                        && (best == null
+                            || Math.abs(s.timestampNs - timestamp) < Math.abs(best.timestampNs - timestamp))) {
+                    best = s;
+                }
+            }
+            return best;
+        }
+    }
+
+    ImageReader.OnImageAvailableListener mAnalysisImageListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    // Latest only: stats that fall behind skip frames instead of adding latency.
+                    Image img = reader.acquireLatestImage();
+                    if (img == null) {
+                        return;
+                    }
+                    Image.Plane luma = img.getPlanes()[0];
+                    StatisticsEngine.FrameStatistics stats = mStatisticsEngine.process(mStatisticsClient,
+                            luma.getBuffer(), img.getWidth(), img.getHeight(), luma.getRowStride(),
+                            img.getTimestamp());
+                    img.close();
+                    if (stats == null) {
+                        // Camera is closing.
+                        return;
+                    }
+                    mLatestStatistics = stats;
+                    if (mBurstSelector != null) {
+                        synchronized (mBurstStats) {
+                            if (mBurstStats[mBurstStatsNext] == null) {
+                                mBurstStats[mBurstStatsNext] = new StatisticsEngine.FrameStatistics();
+                            }
+                            stats.copyTo(mBurstStats[mBurstStatsNext]);
+                            mBurstStatsNext = (mBurstStatsNext + 1) % BURST_STATS_HISTORY;
+                        }
+                    }
+                    if (++mAnalysisFrames % STATS_LOG_INTERVAL == 0) {
+                        Log.v(TAG, "Frame statistics: " + mLatestStatistics);
+                    }
+                }
+            };
+
+    /**
+     * Statistics of the most recent analysis frame, or null before the first one.
+     * The object is reused two frames later; copy it to keep it.
+     */
+    public StatisticsEngine.FrameStatistics getLatestStatistics() {
+        return mLatestStatistics;
+    }
+
+    ImageReader.OnImageAvailableListener mRawImageListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image img = reader.acquireNextImage();
+                    if (img == null) {
+                        Log.e(TAG, "Null image returned RAW");
+                        return;
+                    }
+                    Log.v(TAG, String.format("RAW buffer available, w=%d h=%d time=%d",
+                            img.getWidth(), img.getHeight(), img.getTimestamp()));
+                    // Held open until the DNG is written; RAW_MAX_IMAGES bounds how many.
+                    mCaptureBudget.transfer(CaptureBudget.STAGE_HAL, mRawReserveBytes,
+                            CaptureBudget.STAGE_LISTENER, mRawReserveBytes);
+                    mRawMatcher.addItem(img.getTimestamp(), img);
+                }
+            };
+
+    private class RawMatchListener implements CaptureResultMatcher.Listener<Image> {
+        @Override
+        public void onMatched(final Image image, final TotalCaptureResult result) {
+            if (result == null) {
+                Log.w(TAG, "RAW capture failed, no metadata for DNG.");
+                onUnmatched(image);
+                return;
+            }
+            mCaptureBudget.transfer(CaptureBudget.STAGE_LISTENER, mRawReserveBytes,
+                    CaptureBudget.STAGE_SAVER, mRawReserveBytes);
+            mDngWriterHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    String filename = "";
+                    DngCreator dngCreator = new DngCreator(mCameraInfoCache.getCharacteristics(), result);
+                    try {
+                        Integer orientation = result.get(CaptureResult.JPEG_ORIENTATION);
+                        if (orientation != null) {
+                            dngCreator.setOrientation(ExifWriter.orientationToExif(orientation));
+                        }
+                        filename = MediaSaver.saveDng(mContext, dngCreator, image,
+                                sensorTimeToWallClock(image.getTimestamp()), mContext.getContentResolver());
+                    } finally {
+                        dngCreator.close();
+                        image.close();
+                    }
+                    releaseRaw(CaptureBudget.STAGE_SAVER, filename.isEmpty());
+                }
+            });
+        }
+
+        @Override
+        public void onUnmatched(Image image) {
+            image.close();
+            releaseRaw(CaptureBudget.STAGE_LISTENER, true);
+        }
+    }
+
+    private long sensorTimeToWallClock(long sensorTimestampNs) {
+        long now = System.currentTimeMillis();
+        if (!mCameraInfoCache.isTimestampSourceRealtime()) {
+            // Unknown timebase, arrival time is the best we have.
+            return now;
+        }
+        return now - (SystemClock.elapsedRealtimeNanos() - sensorTimestampNs) / 1000000;
+    }
+
     /*************************************
      * CaptureResult metadata processing *
      *************************************/
 
     private CameraCaptureSession.CaptureCallback mCaptureCallback = new LoggingCallbacks.SessionCaptureCallback() {
+        @Override
+        public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request, long timestamp, long frameNumber) {
+            mLatencyProbe.onCaptureStarted(timestamp);
+            super.onCaptureStarted(session, request, timestamp, frameNumber);
+        }
+
         @Override
         public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
+            long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            mLatencyProbe.onCaptureCompleted(timestamp);
+            mStreamMetrics.onPreviewFrame(timestamp);
+            mPrecapture.onPreviewResult(request, result);
             if (!mFirstFrameArrived) {
                 mFirstFrameArrived = true;
-                Log.v(TAG, "App control to first frame");
-                //mMyCameraCallback.receivedFirstFrame();
+                CameraTimer.t_first_frame = SystemClock.elapsedRealtime();
+                Log.v(TAG, "App control to first frame: (" + (CameraTimer.t_first_frame - CameraTimer.t0) + " ms)");
+                MetricsRegistry.get().histogram("camera.first_frame_ms").record(CameraTimer.t_first_frame - CameraTimer.t0);
+                // Preview is up, now do the setup it didn't need.
+                mInitHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishDeferredInit();
+                    }
+                });
+                if (mMyCameraCallback != null) {
+                    mMyCameraCallback.receivedFirstFrame();
+                }
                 //mMyCameraCallback.performanceDataAvailable((int) dt, (int) camera_dt, null);
 		//savePreview();
             }
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps the best few frames of a burst and culls the rest before they are saved.
+ *
+ * Frames are scored as they arrive from sharpness, exposure, likely motion blur and faces.
+ * Sharpness and exposure time are taken relative to the first scored frame, so scores are
+ * comparable within a burst without waiting for all of it. Only the current top keepCount
+ * items are held; a frame that falls out of the top is handed to onCull() right away, so a
+ * long burst holds at most keepCount + 1 encoded frames.
+ */
+public class BurstSelector<T> {
+    // Score weights, summing to 1.
+    private static final float WEIGHT_SHARPNESS = 0.5f;
+    private static final float WEIGHT_EXPOSURE = 0.2f;
+    private static final float WEIGHT_MOTION = 0.2f;
+    private static final float WEIGHT_FACES = 0.1f;
+    // Mid-grey target for mean luma.
+    private static final float TARGET_MEAN_LUMA = 118f;
+
+    public interface Listener<T> {
+        void onKeep(T item, Candidate candidate);
+
+        void onCull(T item, Candidate candidate);
+
+        /**
+         * All frames are in (or lost). Candidates are in arrival order.
+         */
+        void onBurstDone(List<Candidate> candidates);
+    }
+
+    public static class Candidate {
+        public final long timestampNs;
+        public final boolean hasStatistics;
+        public final float sharpness;
+        public final float exposure;
+        public final float motion;
+        public final int faces;
+        public final float score;
+        public boolean kept;
+
+        Candidate(long timestampNs, boolean hasStatistics, float sharpness, float exposure,
+                float motion, int faces, float score) {
+            this.timestampNs = timestampNs;
+            this.hasStatistics = hasStatistics;
+            this.sharpness = sharpness;
+            this.exposure = exposure;
+            this.motion = motion;
+            this.faces = faces;
+            this.score = score;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "{\"timestamp\":%d,\"kept\":%b,\"score\":%.3f,\"sharpness\":%.3f,\"exposure\":%.3f,"
+                            + "\"motion\":%.3f,\"faces\":%d,\"stats\":%b}",
+                    timestampNs, kept, score, sharpness, exposure, motion, faces, hasStatistics);
+        }
+    }
+
+    private final int mExpected;
+    private final int mKeep;
+    private final Listener<T> mListener;
+    private final List<Candidate> mCandidates = new ArrayList<Candidate>();
+    // Current top frames, unordered.
+    private final List<T> mHeldItems = new ArrayList<T>();
+    private final List<Candidate> mHeld = new ArrayList<Candidate>();
+    private int mArrived;
+    private float mRefSharpness = -1;
+    private long mRefExposureNs = -1;
+    private boolean mDone;
+
+    public BurstSelector(int expectedFrames, int keepCount, Listener<T> listener) {
+        mExpected = expectedFrames;
+        mKeep = Math.max(1, keepCount);
+        mListener = listener;
+    }
+
+    /**
+     * A frame of the burst is ready.
+     * @param stats Statistics of the same frame, or null if none were computed for it.
+     * @param exposureNs SENSOR_EXPOSURE_TIME, or <= 0 if unknown.
+     * @param faces Number of detected faces.
+     */
+    public void offer(T item, long timestampNs, StatisticsEngine.FrameStatistics stats, long exposureNs,
+            int faces) {
+        T culledItem = null;
+        Candidate culled = null;
+        Candidate c;
+        synchronized (this) {
+            if (mDone) {
+                culledItem = item;
+            }
+            c = score(timestampNs, stats, exposureNs, faces);
+            mCandidates.add(c);
+            if (culledItem == null) {
+                mHeldItems.add(item);
+                mHeld.add(c);
+                if (mHeld.size() > mKeep) {
+                    int worst = 0;
+                    for (int i = 1; i < mHeld.size(); i++) {
+                        if (mHeld.get(i).score < mHeld.get(worst).score) {
+                            worst = i;
+                        }
+                    }
+                    culled = mHeld.remove(worst);
+                    culledItem = mHeldItems.remove(worst);
+                }
+            } else {
+                culled = c;
+            }
+            mArrived++;
+        }
+        if (culledItem != null) {
+            mListener.onCull(culledItem, culled);
+        }
+        maybeFinish();
+    }
+
+    /**
+     * A frame of the burst will never arrive.
+     */
+    public void frameLost() {
+        synchronized (this) {
+            mArrived++;
+        }
+        maybeFinish();
+    }
+
+    /**
+     * Finish now with whatever arrived, e.g. when a new burst starts or the camera closes.
+     */
+    public void flush() {
+        finish();
+    }
+
+    private void maybeFinish() {
+        boolean complete;
+        synchronized (this) {
+            complete = mArrived >= mExpected;
+        }
+        if (complete) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        List<T> items;
+        List<Candidate> held;
+        List<Candidate> all;
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            items = new ArrayList<T>(mHeldItems);
+            held = new ArrayList<Candidate>(mHeld);
+            mHeldItems.clear();
+            mHeld.clear();
+            for (Candidate c : held) {
+                c.kept = true;
+            }
+            all = new ArrayList<Candidate>(mCandidates);
+        }
+        for (int i = 0; i < items.size(); i++) {
+            mListener.onKeep(items.get(i), held.get(i));
+        }
+        mListener.onBurstDone(all);
+    }
+
+    private Candidate score(long timestampNs, StatisticsEngine.FrameStatistics stats, long exposureNs,
+            int faces) {
+        float sharpness = 0;
+        float exposure = 0;
+        if (stats != null) {
+            if (mRefSharpness < 0) {
+                mRefSharpness = Math.max(1f, stats.sharpness);
+            }
+            // 0.5 at the reference frame's sharpness, saturating at twice that.
+            sharpness = Math.min(2f, stats.sharpness / mRefSharpness) / 2f;
+            float clipped = Math.min(1f, 4f * (stats.lowClipRatio + stats.highClipRatio));
+            float meanError = Math.min(1f, Math.abs(stats.meanLuma - TARGET_MEAN_LUMA) / 128f);
+            exposure = (1f - clipped) * (1f - meanError);
+        }
+        float motion = 0.5f;
+        if (exposureNs > 0) {
+            if (mRefExposureNs < 0) {
+                mRefExposureNs = exposureNs;
+            }
+            // Same scene, same motion: blur grows with exposure time.
+            motion = Math.min(2f, (float) mRefExposureNs / exposureNs) / 2f;
+        }
+        float face = faces > 0 ? 1f : 0f;
+        float score = WEIGHT_SHARPNESS * sharpness + WEIGHT_EXPOSURE * exposure
+                + WEIGHT_MOTION * motion + WEIGHT_FACES * face;
+        return new Candidate(timestampNs, stats != null, sharpness, exposure, motion, faces, score);
+    }
+}
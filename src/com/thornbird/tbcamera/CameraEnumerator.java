@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lists every camera: the ids the system exposes, and for logical multi-cameras the physical
+ * cameras behind them, including ones that can't be opened on their own.
+ */
+public class CameraEnumerator {
+    private static final String TAG = "TBCamera_ENUM";
+
+    public static class CameraEntry {
+        public final String id;
+        public final int facing;
+        public final int hardwareLevel;
+        public final boolean logicalMultiCamera;
+        // Physical cameras behind a logical one, empty otherwise.
+        public final Set<String> physicalIds;
+        // Physical id of some logical camera that isn't in getCameraIdList(): only reachable
+        // through its logical camera.
+        public final boolean hidden;
+
+        CameraEntry(String id, int facing, int hardwareLevel, boolean logicalMultiCamera,
+                Set<String> physicalIds, boolean hidden) {
+            this.id = id;
+            this.facing = facing;
+            this.hardwareLevel = hardwareLevel;
+            this.logicalMultiCamera = logicalMultiCamera;
+            this.physicalIds = physicalIds;
+            this.hidden = hidden;
+        }
+
+        @Override
+        public String toString() {
+            String facingName = facing == CameraMetadata.LENS_FACING_FRONT ? "front"
+                    : facing == CameraMetadata.LENS_FACING_BACK ? "back" : "external";
+            return "camera " + id + " " + facingName + " level=" + hardwareLevel
+                    + (logicalMultiCamera ? " logical" + physicalIds : "") + (hidden ? " hidden" : "");
+        }
+    }
+
+    public static List<CameraEntry> enumerate(CameraManager manager) {
+        Map<String, CameraEntry> entries = new LinkedHashMap<String, CameraEntry>();
+        String[] ids;
+        try {
+            ids = manager.getCameraIdList();
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Could not get camera ID list: " + e);
+            return new ArrayList<CameraEntry>();
+        }
+        for (String id : ids) {
+            addEntry(manager, entries, id, false);
+        }
+        // Physical cameras after all the public ids, so a public physical id isn't marked hidden.
+        for (String id : ids) {
+            CameraEntry entry = entries.get(id);
+            if (entry == null) {
+                continue;
+            }
+            for (String physicalId : entry.physicalIds) {
+                if (!entries.containsKey(physicalId)) {
+                    addEntry(manager, entries, physicalId, true);
+                }
+            }
+        }
+        List<CameraEntry> list = new ArrayList<CameraEntry>(entries.values());
+        for (CameraEntry entry : list) {
+            Log.v(TAG, "  " + entry);
+        }
+        return list;
+    }
+
+    /**
+     * Sets of camera ids the device can stream from at the same time. Empty before API 30,
+     * where the only way to find out is to try.
+     */
+    public static List<Set<String>> getConcurrentCameraIds(CameraManager manager) {
+        List<Set<String>> sets = new ArrayList<Set<String>>();
+        if (Build.VERSION.SDK_INT < 30) {
+            return sets;
+        }
+        try {
+            sets.addAll(manager.getConcurrentCameraIds());
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Could not get concurrent camera ids: " + e);
+        }
+        return sets;
+    }
+
+    private static void addEntry(CameraManager manager, Map<String, CameraEntry> entries, String id,
+            boolean hidden) {
+        CameraCharacteristics c;
+        try {
+            c = manager.getCameraCharacteristics(id);
+        } catch (CameraAccessException | IllegalArgumentException e) {
+            Log.e(TAG, "No characteristics for camera " + id + ": " + e);
+            return;
+        }
+        Integer facing = c.get(CameraCharacteristics.LENS_FACING);
+        Integer level = c.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        boolean logical = false;
+        Set<String> physicalIds = Collections.emptySet();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            int[] capabilities = c.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+            for (int capability : capabilities) {
+                if (capability == CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_LOGICAL_MULTI_CAMERA) {
+                    logical = true;
+                }
+            }
+            if (logical) {
+                physicalIds = c.getPhysicalCameraIds();
+            }
+        }
+        entries.put(id, new CameraEntry(id, facing != null ? facing : -1, level != null ? level : -1,
+                logical, physicalIds, hidden));
+    }
+}
@@ -23,6 +23,7 @@ import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.os.Build;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.util.SizeF;
 
@@ -37,8 +38,14 @@ public class CameraInfoCache {
     private CameraCharacteristics mCameraCharacteristics;
     private String mCameraId;
     private Size mLargestYuvSize;
+    private Size[] mYuvSizes;
     private Size mLargestJpegSize;
+    private Size mLargestRawSize;
+    private boolean mRawCapable;
     private int mHardwareLevel;
+    private int mTimestampSource;
+    private int mSensorOrientation;
+    private int mBestFaceDetectMode = CameraMetadata.STATISTICS_FACE_DETECT_MODE_OFF;
 
     /**
      * Constructor.
@@ -64,24 +71,68 @@ public class CameraInfoCache {
             Log.e(TAG, "ERROR: Could not find a suitable rear or front camera.");
             return;
         }
+        cacheCharacteristics();
+    }
 
+    /**
+     * Constructor for a specific camera, e.g. one picked with CameraEnumerator.
+     */
+    public CameraInfoCache(CameraManager cameraMgr, String cameraId) {
+        try {
+            mCameraCharacteristics = cameraMgr.getCameraCharacteristics(cameraId);
+        } catch (Exception e) {
+            Log.e(TAG, "ERROR: No camera information for camera " + cameraId + ": " + e);
+            return;
+        }
+        mCameraId = cameraId;
+        cacheCharacteristics();
+    }
+
+    private void cacheCharacteristics() {
         // Store YUV_420_888, JPEG, Raw info
         StreamConfigurationMap map = mCameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
         int[] formats = map.getOutputFormats();
         long lowestStall = Long.MAX_VALUE;
         for (int i = 0; i < formats.length; i++) {
             if (formats[i] == ImageFormat.YUV_420_888) {
-                mLargestYuvSize = returnLargestSize(map.getOutputSizes(formats[i]));
+                mYuvSizes = map.getOutputSizes(formats[i]);
+                mLargestYuvSize = returnLargestSize(mYuvSizes);
             }
 
 
             if (formats[i] == ImageFormat.JPEG) {
                 mLargestJpegSize = returnLargestSize(map.getOutputSizes(formats[i]));
             }
+
+            if (formats[i] == ImageFormat.RAW_SENSOR) {
+                mLargestRawSize = returnLargestSize(map.getOutputSizes(formats[i]));
+            }
+        }
+
+        // RAW_SENSOR may be listed without the capability that makes it usable for DNG.
+        int[] capabilities = mCameraCharacteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        for (int capability : capabilities) {
+            if (capability == CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_RAW) {
+                mRawCapable = true;
+            }
         }
 
         // Misc stuff.
         mHardwareLevel = mCameraCharacteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        mTimestampSource = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        Integer sensorOrientation = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        mSensorOrientation = sensorOrientation != null ? sensorOrientation : 0;
+        int[] faceModes = mCameraCharacteristics.get(CameraCharacteristics.STATISTICS_INFO_AVAILABLE_FACE_DETECT_MODES);
+        if (faceModes != null) {
+            for (int mode : faceModes) {
+                // SIMPLE is cheaper than FULL and gives all a face count needs.
+                if (mode == CameraMetadata.STATISTICS_FACE_DETECT_MODE_SIMPLE
+                        || (mode == CameraMetadata.STATISTICS_FACE_DETECT_MODE_FULL
+                            && mBestFaceDetectMode == CameraMetadata.STATISTICS_FACE_DETECT_MODE_OFF)) {
+                    mBestFaceDetectMode = mode;
+                }
+            }
+        }
 
     }
 
@@ -118,10 +169,52 @@ public class CameraInfoCache {
 
 
 
+    // Analysis frames only need to be big enough for statistics.
+    private static final int MAX_ANALYSIS_WIDTH = 640;
+
+    /**
+     * Small YUV size with the preview's aspect ratio, for the statistics stream.
+     */
+    public Size getAnalysisSize() {
+        Size preview = getPreviewSize();
+        Size best = null;
+        Size smallest = null;
+        for (Size s : mYuvSizes) {
+            if (smallest == null || s.getWidth() * s.getHeight() < smallest.getWidth() * smallest.getHeight()) {
+                smallest = s;
+            }
+            boolean sameAspect = s.getWidth() * preview.getHeight() == s.getHeight() * preview.getWidth();
+            if (sameAspect && s.getWidth() <= MAX_ANALYSIS_WIDTH
+                    && (best == null || s.getWidth() > best.getWidth())) {
+                best = s;
+            }
+        }
+        return best != null ? best : smallest;
+    }
+
+    /**
+     * AE target frame rate range with the lowest maximum, for preview that should cost little.
+     */
+    public Range<Integer> getLowestFpsRange() {
+        Range<Integer>[] ranges = mCameraCharacteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        Range<Integer> lowest = null;
+        for (Range<Integer> r : ranges) {
+            if (lowest == null || r.getUpper() < lowest.getUpper()
+                    || (r.getUpper().equals(lowest.getUpper()) && r.getLower() < lowest.getLower())) {
+                lowest = r;
+            }
+        }
+        return lowest;
+    }
+
     public String getCameraId() {
         return mCameraId;
     }
 
+    public CameraCharacteristics getCharacteristics() {
+        return mCameraCharacteristics;
+    }
+
     public Size getPreviewSize() {
         if (isHardwareLevelAtLeast(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_3)) {
             // Bigger preview size for more advanced devices
@@ -135,4 +228,33 @@ public class CameraInfoCache {
         return mLargestYuvSize;
     }
 
+    public boolean isRawSupported() {
+        return mRawCapable && mLargestRawSize != null;
+    }
+
+    public Size getRawSize() {
+        return mLargestRawSize;
+    }
+
+    /**
+     * Cheapest face detect mode that reports faces, or STATISTICS_FACE_DETECT_MODE_OFF.
+     */
+    public int getBestFaceDetectMode() {
+        return mBestFaceDetectMode;
+    }
+
+    /**
+     * Clockwise rotation that makes sensor output upright on a device in its natural orientation.
+     */
+    public int getSensorOrientation() {
+        return mSensorOrientation;
+    }
+
+    /**
+     * True if sensor timestamps share the SystemClock.elapsedRealtimeNanos() timebase.
+     */
+    public boolean isTimestampSourceRealtime() {
+        return mTimestampSource == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+    }
+
 }
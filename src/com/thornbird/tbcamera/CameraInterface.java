@@ -18,6 +18,8 @@ package com.thornbird.tbcamera;
 import android.util.Size;
 import android.view.Surface;
 
+import java.util.List;
+
 /**
  * This is a simple camera interface not specific to API1 or API2.
  */
@@ -27,6 +29,11 @@ public interface CameraInterface {
      */
     void openCamera();
 
+    /**
+     * Size of the preview stream. The preview Surface should be set to this size.
+     */
+    Size getPreviewSize();
+
     /**
      * Start preview to a surface. Also need to call openCamera().
      * @param surface
@@ -41,7 +48,43 @@ public interface CameraInterface {
     /**
      * Take a picture and return data with provided callback.
      * Preview must be started.
+     * @return false if the capture was held back because saving is behind.
+     */
+    boolean takePicture();
+
+    /**
+     * Take a burst and save only the best few frames, plus a small text file describing all of them.
+     * @param frames Frames to capture.
+     * @param keep Frames to save.
+     * @return false if the burst could not be started.
+     */
+    boolean takeBurst(int frames, int keep);
+
+    /**
+     * Take a still every intervalMs with the camera mostly idle in between.
+     * @param frameCount Stills to take, 0 to go on until stopIntervalCapture().
+     * @return false if interval capture could not be started.
+     */
+    boolean startIntervalCapture(long intervalMs, int frameCount);
+
+    /**
+     * Stop interval capture and go back to normal preview.
+     */
+    void stopIntervalCapture();
+
+    /**
+     * Set callback to receive frames, backpressure and drop events.
+     */
+    void setCallback(MyCameraCallback callback);
+
+    /**
+     * Number of still captures lost between the HAL and disk so far.
+     */
+    int getDroppedFrameCount();
+
+    /**
+     * Up to count most recently saved captures, newest first. Doesn't query the MediaStore.
      */
-//    void takePicture();
+    List<CaptureIndex.Entry> getRecentCaptures(int count);
 
 }
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The parts of the capture pipeline that cameras open at the same time share: worker threads,
+ * the capture budget, the statistics engine, the JPEG transform pool and the capture index.
+ *
+ * A second camera on the same pipeline adds no threads; its callbacks are serialized with the
+ * first camera's on the same ops, listener and saver threads, and its stills count against
+ * the same memory budget.
+ */
+public class CameraPipeline {
+    private static final String TAG = "TBCamera_PIPELINE";
+
+    // Fraction of the heap that still captures may hold between HAL and disk.
+    private static final int CAPTURE_BUDGET_HEAP_DIVISOR = 4;
+    // Threads computing statistics on one analysis frame, including the stats thread.
+    private static final int STATS_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    private final Map<String, HandlerThread> mThreads = new LinkedHashMap<String, HandlerThread>();
+    private final Map<String, Handler> mHandlers = new LinkedHashMap<String, Handler>();
+    private final CaptureBudget mCaptureBudget;
+    private StatisticsEngine mStatisticsEngine;
+    private ForkJoinPool mJpegTransformPool;
+    // One per process: two open copies of the file would append over each other.
+    private static CaptureIndex sCaptureIndex;
+    private boolean mReleased;
+
+    public CameraPipeline() {
+        mCaptureBudget = new CaptureBudget(Runtime.getRuntime().maxMemory() / CAPTURE_BUDGET_HEAP_DIVISOR);
+        ResourceManager.get().register(mBudgetResource);
+        publishBudget(MetricsRegistry.get());
+    }
+
+    // Occupancy of the capture budget and the saver queue behind it.
+    private void publishBudget(MetricsRegistry registry) {
+        registry.registerSource("budget.bytes_in_flight", new MetricsRegistry.Source() {
+            @Override
+            public double getValue() {
+                return mCaptureBudget.getBytesInFlight();
+            }
+        });
+        registry.registerSource("budget.occupancy", new MetricsRegistry.Source() {
+            @Override
+            public double getValue() {
+                return (double) mCaptureBudget.getBytesInFlight() / mCaptureBudget.getBudgetBytes();
+            }
+        });
+        registry.registerSource("budget.hal_items", new MetricsRegistry.Source() {
+            @Override
+            public double getValue() {
+                return mCaptureBudget.getStageItems(CaptureBudget.STAGE_HAL);
+            }
+        });
+        registry.registerSource("budget.dropped", new MetricsRegistry.Source() {
+            @Override
+            public double getValue() {
+                return mCaptureBudget.getDroppedCount();
+            }
+        });
+        registry.registerSource("budget.throttle_events", new MetricsRegistry.Source() {
+            @Override
+            public double getValue() {
+                return mCaptureBudget.getThrottleEvents();
+            }
+        });
+        registry.registerSource("saver.queue_depth", new MetricsRegistry.Source() {
+            @Override
+            public double getValue() {
+                return mCaptureBudget.getStageItems(CaptureBudget.STAGE_LISTENER)
+                        + mCaptureBudget.getStageItems(CaptureBudget.STAGE_SAVER);
+            }
+        });
+        registry.registerSource("saver.queue_bytes", new MetricsRegistry.Source() {
+            @Override
+            public double getValue() {
+                return mCaptureBudget.getStageBytes(CaptureBudget.STAGE_LISTENER)
+                        + mCaptureBudget.getStageBytes(CaptureBudget.STAGE_SAVER);
+            }
+        });
+    }
+
+    private static void unpublishBudget(MetricsRegistry registry) {
+        for (String name : new String[] {"budget.bytes_in_flight", "budget.occupancy", "budget.hal_items",
+                "budget.dropped", "budget.throttle_events", "saver.queue_depth", "saver.queue_bytes"}) {
+            registry.unregisterSource(name);
+        }
+    }
+
+    // Stills waiting to be saved: each trim stage halves what may be in flight.
+    private final ResourceManager.Resource mBudgetResource = new ResourceManager.Resource() {
+        @Override
+        public String getName() {
+            return "capture budget";
+        }
+
+        @Override
+        public long getBytes() {
+            return mCaptureBudget.getBytesInFlight();
+        }
+
+        @Override
+        public long trim(int stage) {
+            long previous = mCaptureBudget.setBudgetFraction(1 << stage);
+            return Math.max(0, previous - mCaptureBudget.getBudgetBytes());
+        }
+    };
+
+    /**
+     * Handler of the named thread, started on first use.
+     */
+    public synchronized Handler getHandler(String threadName) {
+        if (mReleased) {
+            throw new IllegalStateException("Pipeline already released, no thread " + threadName);
+        }
+        Handler handler = mHandlers.get(threadName);
+        if (handler == null) {
+            HandlerThread thread = new HandlerThread(threadName);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+            mThreads.put(threadName, thread);
+            mHandlers.put(threadName, handler);
+        }
+        return handler;
+    }
+
+    public CaptureBudget getCaptureBudget() {
+        return mCaptureBudget;
+    }
+
+    /**
+     * Shared engine and worker threads; each camera passes its own StatisticsEngine.Client.
+     */
+    public synchronized StatisticsEngine getStatisticsEngine() {
+        if (mStatisticsEngine == null) {
+            mStatisticsEngine = new StatisticsEngine(STATS_THREADS);
+        }
+        return mStatisticsEngine;
+    }
+
+    /**
+     * Pool for JpegTransformer, started on first use.
+     */
+    public synchronized ForkJoinPool getJpegTransformPool() {
+        if (mJpegTransformPool == null) {
+            mJpegTransformPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return mJpegTransformPool;
+    }
+
+    /**
+     * The capture index, opened on first use and kept open for the life of the process.
+     * Null if it can't be opened.
+     */
+    public static synchronized CaptureIndex getCaptureIndex(File file) {
+        if (sCaptureIndex == null) {
+            final CaptureIndex index = new CaptureIndex(file);
+            try {
+                index.open();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open capture index: " + e);
+                index.close();
+                return null;
+            }
+            sCaptureIndex = index;
+            ResourceManager.get().register(new ResourceManager.Resource() {
+                @Override
+                public String getName() {
+                    return "capture index";
+                }
+
+                @Override
+                public long getBytes() {
+                    return index.getMemoryBytes();
+                }
+
+                @Override
+                public long trim(int stage) {
+                    // Reloading takes a few ms, only worth it once memory is really short.
+                    return stage >= ResourceManager.TRIM_LOW ? index.trimMemory() : 0;
+                }
+            });
+        }
+        return sCaptureIndex;
+    }
+
+    /**
+     * Stop the threads once the work already posted to them is done.
+     */
+    public synchronized void release() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        ResourceManager.get().unregister(mBudgetResource);
+        unpublishBudget(MetricsRegistry.get());
+        for (HandlerThread thread : mThreads.values()) {
+            thread.quitSafely();
+        }
+        if (mStatisticsEngine != null) {
+            mStatisticsEngine.release();
+        }
+        if (mJpegTransformPool != null) {
+            // Running transforms finish; the saver thread is already on its way out.
+            mJpegTransformPool.shutdown();
+        }
+        Log.v(TAG, "Released " + mThreads.keySet() + ", " + mCaptureBudget);
+    }
+}
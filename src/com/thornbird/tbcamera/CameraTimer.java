@@ -27,7 +27,15 @@ public class CameraTimer {
     public static long t_open_end;
     // Told camera to configure capture session.
     public static long t_session_go;
+    // Session configured (deferred preview Surface startup only).
+    public static long t_session_configured;
+    // Preview Surface ready, or the session go if it already was (deferred startup only).
+    public static long t_surface_ready;
+    // Deferred preview Surface attached to the session.
+    public static long t_session_finalized;
     // Told session to do repeating request.
     public static long t_burst;
+    // First preview frame completed.
+    public static long t_first_frame;
 
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps track of how many bytes are in flight between capture and save.
+ *
+ * Every still capture reserves an estimate in the HAL stage before the request is
+ * issued, moves to the listener stage when the ImageReader hands it over, then to the
+ * saver stage until the file is written. New captures are refused while the total is
+ * over budget, and only allowed again once it falls below the low watermark.
+ *
+ * Thread safe: stages are touched from the ops, listener and saver threads.
+ */
+public class CaptureBudget {
+    private static final String TAG = "TBCamera_BUDGET";
+
+    public static final int STAGE_HAL = 0;
+    public static final int STAGE_LISTENER = 1;
+    public static final int STAGE_SAVER = 2;
+    private static final int NUM_STAGES = 3;
+    private static final String[] STAGE_NAMES = {"hal", "listener", "saver"};
+
+    /**
+     * Gets told when captures start or stop being throttled, and about dropped frames.
+     * Called on whichever thread changed the budget, never with the lock held.
+     */
+    public interface Listener {
+        void onBackpressure(boolean throttled, long bytesInFlight);
+        void onFrameDropped(int stage, int totalDropped);
+    }
+
+    private final long mFullBudgetBytes;
+    private long mBudgetBytes;
+    private long mLowWatermarkBytes;
+    private final long[] mStageBytes = new long[NUM_STAGES];
+    private final int[] mStageItems = new int[NUM_STAGES];
+    private final int[] mStageItemLimit = new int[NUM_STAGES];
+    private long mTotalBytes;
+    private long mPeakBytes;
+    private int mDropped;
+    private int mThrottleEvents;
+    private boolean mThrottled;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Constructor.
+     * @param budgetBytes Maximum bytes allowed in flight across all stages.
+     */
+    public CaptureBudget(long budgetBytes) {
+        mFullBudgetBytes = budgetBytes;
+        mBudgetBytes = budgetBytes;
+        mLowWatermarkBytes = budgetBytes * 3 / 4;
+        for (int i = 0; i < NUM_STAGES; i++) {
+            mStageItemLimit[i] = Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Every camera sharing the budget registers its own listener.
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Shrink the budget to a fraction of the size it was created with, e.g. under memory
+     * pressure; 1 restores it. Bytes already in flight drain as usual.
+     * @return The previous budget.
+     */
+    public synchronized long setBudgetFraction(int divisor) {
+        long previous = mBudgetBytes;
+        mBudgetBytes = mFullBudgetBytes / divisor;
+        mLowWatermarkBytes = mBudgetBytes * 3 / 4;
+        Log.v(TAG, "Budget " + previous + " -> " + mBudgetBytes + " bytes");
+        return previous;
+    }
+
+    /**
+     * Cap the number of items a stage may hold, e.g. ImageReader maxImages for the HAL stage.
+     */
+    public synchronized void setStageItemLimit(int stage, int maxItems) {
+        mStageItemLimit[stage] = maxItems;
+    }
+
+    /**
+     * Add to a stage's item limit, for a camera that starts sharing the budget; negative to
+     * take its share back. Limits from all cameras add up; no share at all means unlimited.
+     */
+    public synchronized void addStageItemLimit(int stage, int items) {
+        int current = mStageItemLimit[stage] == Integer.MAX_VALUE ? 0 : mStageItemLimit[stage];
+        int limit = current + items;
+        mStageItemLimit[stage] = limit > 0 ? limit : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Reserve bytes for a new item entering a stage.
+     * A single item is always admitted into an empty pipeline so oversized frames cannot stall forever.
+     * @return false if the capture should be held back.
+     */
+    public boolean tryAcquire(int stage, long bytes) {
+        boolean notify = false;
+        long total;
+        synchronized (this) {
+            boolean overBytes = mTotalBytes > 0 && mTotalBytes + bytes > mBudgetBytes;
+            boolean overItems = mStageItems[stage] >= mStageItemLimit[stage];
+            if (mThrottled || overBytes || overItems) {
+                if (!mThrottled) {
+                    mThrottled = true;
+                    mThrottleEvents++;
+                    notify = true;
+                }
+                total = mTotalBytes;
+            } else {
+                add(stage, bytes);
+                return true;
+            }
+        }
+        Log.v(TAG, "Throttling captures, " + total + " bytes in flight");
+        if (notify) {
+            for (Listener listener : mListeners) {
+                listener.onBackpressure(true, total);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move an item to the next stage. Size may change, e.g. from an estimate to the actual JPEG size.
+     * Leaving the HAL stage frees a HAL slot, which can end throttling.
+     */
+    public void transfer(int fromStage, long fromBytes, int toStage, long toBytes) {
+        long total;
+        synchronized (this) {
+            remove(fromStage, fromBytes);
+            add(toStage, toBytes);
+            total = tryResume();
+        }
+        notifyResumed(total);
+    }
+
+    /**
+     * Item has left the pipeline (saved, or given up on).
+     */
+    public void release(int stage, long bytes) {
+        long total;
+        synchronized (this) {
+            remove(stage, bytes);
+            total = tryResume();
+        }
+        notifyResumed(total);
+    }
+
+    // Ends throttling once bytes are under the low watermark and a HAL slot is free.
+    // Returns the bytes in flight if it did, -1 otherwise.
+    private long tryResume() {
+        if (!mThrottled || mTotalBytes > mLowWatermarkBytes
+                || mStageItems[STAGE_HAL] >= mStageItemLimit[STAGE_HAL]) {
+            return -1;
+        }
+        mThrottled = false;
+        return mTotalBytes;
+    }
+
+    private void notifyResumed(long total) {
+        if (total < 0) {
+            return;
+        }
+        Log.v(TAG, "Captures resumed, " + total + " bytes in flight");
+        for (Listener listener : mListeners) {
+            listener.onBackpressure(false, total);
+        }
+    }
+
+    /**
+     * Item was lost in a stage. Releases its bytes and counts the drop.
+     */
+    public void drop(int stage, long bytes) {
+        int dropped;
+        synchronized (this) {
+            mDropped++;
+            dropped = mDropped;
+        }
+        Log.w(TAG, "Frame dropped in " + STAGE_NAMES[stage] + " stage, total dropped: " + dropped);
+        release(stage, bytes);
+        for (Listener listener : mListeners) {
+            listener.onFrameDropped(stage, dropped);
+        }
+    }
+
+    private void add(int stage, long bytes) {
+        mStageBytes[stage] += bytes;
+        mStageItems[stage]++;
+        mTotalBytes += bytes;
+        if (mTotalBytes > mPeakBytes) {
+            mPeakBytes = mTotalBytes;
+        }
+    }
+
+    private void remove(int stage, long bytes) {
+        mStageBytes[stage] -= bytes;
+        mStageItems[stage]--;
+        mTotalBytes -= bytes;
+    }
+
+    public synchronized boolean isThrottled() {
+        return mThrottled;
+    }
+
+    public synchronized long getBytesInFlight() {
+        return mTotalBytes;
+    }
+
+    public synchronized long getStageBytes(int stage) {
+        return mStageBytes[stage];
+    }
+
+    public synchronized int getStageItems(int stage) {
+        return mStageItems[stage];
+    }
+
+    public synchronized long getPeakBytes() {
+        return mPeakBytes;
+    }
+
+    public synchronized int getDroppedCount() {
+        return mDropped;
+    }
+
+    public synchronized int getThrottleEvents() {
+        return mThrottleEvents;
+    }
+
+    public synchronized long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("in flight %d/%d bytes (hal %d, listener %d, saver %d), peak %d, dropped %d, throttled %d times",
+                mTotalBytes, mBudgetBytes, mStageBytes[STAGE_HAL], mStageBytes[STAGE_LISTENER],
+                mStageBytes[STAGE_SAVER], mPeakBytes, mDropped, mThrottleEvents);
+    }
+}
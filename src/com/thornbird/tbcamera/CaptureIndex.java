@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * App-owned index of saved captures, so recent shots and the next file number can be found
+ * without asking the MediaStore or listing DCIM.
+ *
+ * On disk it is an append-only file of fixed size records behind a small header. The header
+ * holds how many records were known good when last written; on open those are read straight
+ * from a read-only mapping, and only records past that count (an append that was cut short)
+ * are checksummed, and dropped if broken. In memory the entries are kept sorted by sequence
+ * number, so lookups are binary searches. Under memory pressure the in-memory entries can be
+ * dropped with trimMemory(); the next lookup reads them back from the file.
+ *
+ * Thread safe.
+ */
+public class CaptureIndex {
+    private static final String TAG = "TBCamera_INDEX";
+
+    private static final int MAGIC = 0x54424358; // "TBCX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int HEADER_COUNT_OFFSET = 12;
+
+    // Record layout, all big-endian.
+    private static final int RECORD_SIZE = 256;
+    private static final int RECORD_MAGIC = 0x54424352; // "TBCR"
+    private static final int OFF_SEQUENCE = 4;
+    private static final int OFF_TIMESTAMP = 8;
+    private static final int OFF_SIZE = 16;
+    private static final int OFF_WIDTH = 24;
+    private static final int OFF_HEIGHT = 28;
+    private static final int OFF_THUMB_OFFSET = 32;
+    private static final int OFF_THUMB_LENGTH = 40;
+    private static final int OFF_PATH_LENGTH = 44;
+    private static final int OFF_PATH = 48;
+    private static final int OFF_CRC = RECORD_SIZE - 4;
+    private static final int MAX_PATH_BYTES = OFF_CRC - OFF_PATH;
+
+    // Rough heap cost of one loaded Entry, path string included.
+    private static final int ENTRY_BYTES = 200;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static class Entry {
+        public final int sequence;
+        public final String path;
+        // Wall clock time of the capture.
+        public final long timestamp;
+        public final long size;
+        public final int width;
+        public final int height;
+        // Where a thumbnail lives inside the file, -1 if it has none.
+        public final long thumbnailOffset;
+        public final int thumbnailLength;
+
+        public Entry(int sequence, String path, long timestamp, long size, int width, int height,
+                long thumbnailOffset, int thumbnailLength) {
+            this.sequence = sequence;
+            this.path = path;
+            this.timestamp = timestamp;
+            this.size = size;
+            this.width = width;
+            this.height = height;
+            this.thumbnailOffset = thumbnailOffset;
+            this.thumbnailLength = thumbnailLength;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + sequence + " " + path + " " + width + "x" + height + " " + size + " bytes";
+        }
+    }
+
+    private final File mFile;
+    private RandomAccessFile mRaf;
+    private FileChannel mChannel;
+    // Sorted by sequence. Appends are nearly always in order, so inserts land at the end.
+    private List<Entry> mEntries = new ArrayList<Entry>();
+    // False after trimMemory(), until the entries are read back.
+    private boolean mLoaded;
+    private int mRecordCount;
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private final ByteBuffer mCount = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
+
+    public CaptureIndex(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Open or create the index file and load it.
+     */
+    public synchronized void open() throws IOException {
+        long t0 = System.nanoTime();
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mChannel = mRaf.getChannel();
+        long length = mChannel.size();
+        if (length < HEADER_SIZE) {
+            writeHeader();
+            length = HEADER_SIZE;
+        }
+        int records = (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+        int trusted = 0;
+        int committed = 0;
+        if (records > 0) {
+            MappedByteBuffer map = mChannel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    HEADER_SIZE + (long) records * RECORD_SIZE);
+            map.order(ByteOrder.BIG_ENDIAN);
+            if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getInt(8) != RECORD_SIZE) {
+                throw new IOException("Not a capture index: " + mFile);
+            }
+            committed = map.getInt(HEADER_COUNT_OFFSET);
+            trusted = Math.min(records, committed);
+            int valid = 0;
+            for (int i = 0; i < records; i++) {
+                int base = HEADER_SIZE + i * RECORD_SIZE;
+                // Records past the committed count may be a torn append.
+                if (i >= trusted && !isValid(map, base)) {
+                    break;
+                }
+                insertSorted(readEntry(map, base));
+                valid++;
+            }
+            records = valid;
+        }
+        mRecordCount = records;
+        mLoaded = true;
+        if (HEADER_SIZE + (long) records * RECORD_SIZE != length || committed != records) {
+            mChannel.truncate(HEADER_SIZE + (long) records * RECORD_SIZE);
+            writeCount();
+        }
+        Log.v(TAG, String.format("Loaded %d captures (%d checked) from %s in %.2f ms",
+                records, records - trusted, mFile, (System.nanoTime() - t0) / 1e6));
+    }
+
+    public synchronized void close() {
+        if (mRaf == null) {
+            return;
+        }
+        try {
+            mRaf.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close " + mFile);
+        }
+        mRaf = null;
+        mChannel = null;
+    }
+
+    /**
+     * Record a saved capture. The record is in the file (not necessarily synced) on return.
+     */
+    public synchronized void append(Entry entry) throws IOException {
+        if (mChannel == null) {
+            throw new IOException("Capture index not open.");
+        }
+        byte[] path = entry.path.getBytes(UTF8);
+        if (path.length > MAX_PATH_BYTES) {
+            throw new IOException("Path too long for capture index: " + entry.path);
+        }
+        ByteBuffer r = mRecord;
+        r.clear();
+        r.putInt(RECORD_MAGIC);
+        r.putInt(entry.sequence);
+        r.putLong(entry.timestamp);
+        r.putLong(entry.size);
+        r.putInt(entry.width);
+        r.putInt(entry.height);
+        r.putLong(entry.thumbnailOffset);
+        r.putInt(entry.thumbnailLength);
+        r.putInt(path.length);
+        r.put(path);
+        while (r.position() < OFF_CRC) {
+            r.put((byte) 0);
+        }
+        r.putInt(crc(r.array(), 0, OFF_CRC));
+        r.flip();
+        long position = HEADER_SIZE + (long) mRecordCount * RECORD_SIZE;
+        while (r.hasRemaining()) {
+            position += mChannel.write(r, position);
+        }
+        mRecordCount++;
+        // The record first, then the count that vouches for it.
+        writeCount();
+        if (mLoaded) {
+            insertSorted(entry);
+        }
+    }
+
+    /**
+     * Drop the in-memory entries; they are read back from the file when next needed.
+     * @return Approximate heap bytes freed.
+     */
+    public synchronized long trimMemory() {
+        if (!mLoaded || mChannel == null) {
+            return 0;
+        }
+        long bytes = getMemoryBytes();
+        mEntries = new ArrayList<Entry>();
+        mLoaded = false;
+        Log.v(TAG, "Dropped " + mRecordCount + " cached entries, about " + bytes + " bytes");
+        return bytes;
+    }
+
+    /**
+     * Approximate heap bytes held by loaded entries.
+     */
+    public synchronized long getMemoryBytes() {
+        return (long) mEntries.size() * ENTRY_BYTES;
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded || mChannel == null) {
+            return;
+        }
+        long t0 = System.nanoTime();
+        try {
+            // Everything up to mRecordCount was verified by open() or written since.
+            if (mRecordCount > 0) {
+                MappedByteBuffer map = mChannel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        HEADER_SIZE + (long) mRecordCount * RECORD_SIZE);
+                map.order(ByteOrder.BIG_ENDIAN);
+                for (int i = 0; i < mRecordCount; i++) {
+                    insertSorted(readEntry(map, HEADER_SIZE + i * RECORD_SIZE));
+                }
+            }
+            mLoaded = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not reload capture index: " + e);
+            mEntries.clear();
+            return;
+        }
+        Log.v(TAG, String.format("Reloaded %d captures in %.2f ms", mRecordCount,
+                (System.nanoTime() - t0) / 1e6));
+    }
+
+    public synchronized int size() {
+        ensureLoaded();
+        return mEntries.size();
+    }
+
+    /**
+     * Highest sequence number recorded, or 0 if empty.
+     */
+    public synchronized int getLastSequence() {
+        ensureLoaded();
+        return mEntries.isEmpty() ? 0 : mEntries.get(mEntries.size() - 1).sequence;
+    }
+
+    /**
+     * The entry with this sequence number, or null.
+     */
+    public synchronized Entry find(int sequence) {
+        ensureLoaded();
+        int i = search(sequence);
+        return i >= 0 ? mEntries.get(i) : null;
+    }
+
+    /**
+     * Up to count most recent captures, newest first.
+     */
+    public synchronized List<Entry> getRecent(int count) {
+        ensureLoaded();
+        int n = Math.min(count, mEntries.size());
+        List<Entry> recent = new ArrayList<Entry>(n);
+        for (int i = mEntries.size() - 1; i >= mEntries.size() - n; i--) {
+            recent.add(mEntries.get(i));
+        }
+        return recent;
+    }
+
+    /**
+     * Captures with sequence numbers below the given one, newest first, for paging back.
+     */
+    public synchronized List<Entry> getBefore(int sequence, int count) {
+        ensureLoaded();
+        int i = search(sequence);
+        int end = i >= 0 ? i : -i - 1;
+        List<Entry> page = new ArrayList<Entry>(Math.min(count, end));
+        for (int j = end - 1; j >= 0 && page.size() < count; j--) {
+            page.add(mEntries.get(j));
+        }
+        return page;
+    }
+
+    private int search(int sequence) {
+        int lo = 0;
+        int hi = mEntries.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int s = mEntries.get(mid).sequence;
+            if (s < sequence) {
+                lo = mid + 1;
+            } else if (s > sequence) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private void insertSorted(Entry entry) {
+        int n = mEntries.size();
+        if (n == 0 || mEntries.get(n - 1).sequence < entry.sequence) {
+            mEntries.add(entry);
+            return;
+        }
+        int i = search(entry.sequence);
+        if (i >= 0) {
+            // Same number written again (counter reset); the later record wins.
+            mEntries.set(i, entry);
+        } else {
+            mEntries.add(-i - 1, entry);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0);
+        header.flip();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += mChannel.write(header, position);
+        }
+    }
+
+    private void writeCount() throws IOException {
+        mCount.clear();
+        mCount.putInt(mRecordCount);
+        mCount.flip();
+        mChannel.write(mCount, HEADER_COUNT_OFFSET);
+    }
+
+    private static boolean isValid(ByteBuffer map, int base) {
+        if (map.getInt(base) != RECORD_MAGIC) {
+            return false;
+        }
+        int pathLength = map.getInt(base + OFF_PATH_LENGTH);
+        if (pathLength < 0 || pathLength > MAX_PATH_BYTES) {
+            return false;
+        }
+        byte[] record = new byte[OFF_CRC];
+        ByteBuffer view = map.duplicate();
+        view.position(base);
+        view.get(record);
+        return crc(record, 0, OFF_CRC) == map.getInt(base + OFF_CRC);
+    }
+
+    private static Entry readEntry(ByteBuffer map, int base) {
+        int pathLength = Math.max(0, Math.min(MAX_PATH_BYTES, map.getInt(base + OFF_PATH_LENGTH)));
+        byte[] path = new byte[pathLength];
+        ByteBuffer view = map.duplicate();
+        view.position(base + OFF_PATH);
+        view.get(path);
+        return new Entry(
+                map.getInt(base + OFF_SEQUENCE),
+                new String(path, UTF8),
+                map.getLong(base + OFF_TIMESTAMP),
+                map.getLong(base + OFF_SIZE),
+                map.getInt(base + OFF_WIDTH),
+                map.getInt(base + OFF_HEIGHT),
+                map.getLong(base + OFF_THUMB_OFFSET),
+                map.getInt(base + OFF_THUMB_LENGTH));
+    }
+
+    private static int crc(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import android.hardware.camera2.TotalCaptureResult;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pairs image buffers with their TotalCaptureResult by sensor timestamp.
+ *
+ * Images and results arrive on different threads in either order; whichever shows up
+ * second completes the pair. At most maxPending unmatched items are held, the oldest is
+ * handed back through onUnmatched() when that is exceeded.
+ */
+public class CaptureResultMatcher<T> {
+    private static final String TAG = "TBCamera_MATCH";
+
+    public interface Listener<T> {
+        /**
+         * @param result null if the capture failed and no metadata will come.
+         */
+        void onMatched(T item, TotalCaptureResult result);
+
+        /**
+         * Item gave up waiting for its result.
+         */
+        void onUnmatched(T item);
+    }
+
+    // Results are small, but don't let them pile up either.
+    private static final int MAX_PENDING_RESULTS = 16;
+
+    private final int mMaxPending;
+    private final Listener<T> mListener;
+    private final LinkedHashMap<Long, T> mItems = new LinkedHashMap<Long, T>();
+    private final LinkedHashMap<Long, TotalCaptureResult> mResults = new LinkedHashMap<Long, TotalCaptureResult>();
+
+    public CaptureResultMatcher(int maxPending, Listener<T> listener) {
+        mMaxPending = maxPending;
+        mListener = listener;
+    }
+
+    public void addItem(long timestamp, T item) {
+        T evicted = null;
+        boolean matched;
+        TotalCaptureResult result = null;
+        synchronized (this) {
+            matched = mResults.containsKey(timestamp);
+            if (matched) {
+                result = mResults.remove(timestamp);
+            } else {
+                mItems.put(timestamp, item);
+                if (mItems.size() > mMaxPending) {
+                    evicted = removeEldest(mItems);
+                }
+            }
+        }
+        if (matched) {
+            mListener.onMatched(item, result);
+        }
+        if (evicted != null) {
+            mListener.onUnmatched(evicted);
+        }
+    }
+
+    /**
+     * @param result null to say the capture at this timestamp failed.
+     */
+    public void addResult(long timestamp, TotalCaptureResult result) {
+        T item;
+        synchronized (this) {
+            item = mItems.remove(timestamp);
+            if (item == null) {
+                mResults.put(timestamp, result);
+                if (mResults.size() > MAX_PENDING_RESULTS) {
+                    removeEldest(mResults);
+                }
+                return;
+            }
+        }
+        mListener.onMatched(item, result);
+    }
+
+    public synchronized int getPendingItemCount() {
+        return mItems.size();
+    }
+
+    /**
+     * Drop everything, handing pending items back through onUnmatched().
+     */
+    public void clear() {
+        Object[] items;
+        synchronized (this) {
+            items = mItems.values().toArray();
+            mItems.clear();
+            mResults.clear();
+        }
+        for (Object item : items) {
+            @SuppressWarnings("unchecked")
+            T t = (T) item;
+            mListener.onUnmatched(t);
+        }
+    }
+
+    private static <V> V removeEldest(LinkedHashMap<Long, V> map) {
+        Iterator<Map.Entry<Long, V>> it = map.entrySet().iterator();
+        V eldest = it.next().getValue();
+        it.remove();
+        return eldest;
+    }
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Builds an EXIF APP1 segment and splices it into a JPEG while writing.
+ *
+ * The compressed data is never decoded or copied: the file is written with one gathering
+ * write of [SOI, JFIF APP0 if any, new APP1, rest of the original stream]. An Exif APP1 the
+ * HAL already put in the stream is skipped over so the file never carries two; its IFD1
+ * thumbnail can be carried over with extractThumbnail() / setThumbnail().
+ */
+public class ExifWriter {
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_APP0 = 0xE0;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_APP15 = 0xEF;
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    // TIFF field types.
+    private static final short TYPE_ASCII = 2;
+    private static final short TYPE_SHORT = 3;
+    private static final short TYPE_LONG = 4;
+    private static final short TYPE_RATIONAL = 5;
+    private static final short TYPE_UNDEFINED = 7;
+
+    // TIFF compression value for a JPEG thumbnail.
+    private static final int COMPRESSION_JPEG = 6;
+
+    // Tags, in the ascending order they must appear in each IFD.
+    private static final int TAG_COMPRESSION = 0x0103;
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_EXPOSURE_TIME = 0x829A;
+    private static final int TAG_F_NUMBER = 0x829D;
+    private static final int TAG_ISO = 0x8827;
+    private static final int TAG_EXIF_VERSION = 0x9000;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_FOCAL_LENGTH = 0x920A;
+    private static final int TAG_SUB_SEC_TIME_ORIGINAL = 0x9291;
+
+    private String mMake = Build.MANUFACTURER;
+    private String mModel = Build.MODEL;
+    private int mOrientationDegrees = -1;
+    private long mExposureTimeNs = -1;
+    private float mAperture = -1;
+    private int mIso = -1;
+    private float mFocalLength = -1;
+    private long mDateTakenMillis = -1;
+    private byte[] mThumbnail;
+    // Where the thumbnail ended up in the last buildApp1(), from the APP1 marker; -1 if none.
+    private int mThumbnailOffset = -1;
+
+    public ExifWriter setMakeModel(String make, String model) {
+        mMake = make;
+        mModel = model;
+        return this;
+    }
+
+    public ExifWriter setOrientation(int degrees) {
+        mOrientationDegrees = degrees;
+        return this;
+    }
+
+    public ExifWriter setExposureTime(long ns) {
+        mExposureTimeNs = ns;
+        return this;
+    }
+
+    public ExifWriter setAperture(float fNumber) {
+        mAperture = fNumber;
+        return this;
+    }
+
+    public ExifWriter setIso(int iso) {
+        mIso = iso;
+        return this;
+    }
+
+    public ExifWriter setFocalLength(float mm) {
+        mFocalLength = mm;
+        return this;
+    }
+
+    public ExifWriter setDateTaken(long wallClockMillis) {
+        mDateTakenMillis = wallClockMillis;
+        return this;
+    }
+
+    public long getDateTaken() {
+        return mDateTakenMillis;
+    }
+
+    /**
+     * JPEG thumbnail for IFD1, null for none. Left out if it doesn't fit in the segment.
+     */
+    public ExifWriter setThumbnail(byte[] jpeg) {
+        mThumbnail = jpeg;
+        return this;
+    }
+
+    /**
+     * Offset of the thumbnail from the start of the last buildApp1() segment, -1 if it has none.
+     */
+    public int getThumbnailOffset() {
+        return mThumbnailOffset;
+    }
+
+    public int getThumbnailLength() {
+        return mThumbnailOffset >= 0 ? mThumbnail.length : 0;
+    }
+
+    /**
+     * Fill in whatever the capture result carries.
+     * @param captureWallClockMillis Wall clock time of the exposure, or -1 if unknown.
+     */
+    public static ExifWriter fromCaptureResult(TotalCaptureResult result, long captureWallClockMillis) {
+        ExifWriter exif = new ExifWriter();
+        Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        if (exposure != null) {
+            exif.setExposureTime(exposure);
+        }
+        Integer iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        if (iso != null) {
+            exif.setIso(iso);
+        }
+        Float aperture = result.get(CaptureResult.LENS_APERTURE);
+        if (aperture != null) {
+            exif.setAperture(aperture);
+        }
+        Float focalLength = result.get(CaptureResult.LENS_FOCAL_LENGTH);
+        if (focalLength != null) {
+            exif.setFocalLength(focalLength);
+        }
+        Integer orientation = result.get(CaptureResult.JPEG_ORIENTATION);
+        if (orientation != null) {
+            exif.setOrientation(orientation);
+        }
+        exif.setDateTaken(captureWallClockMillis);
+        return exif;
+    }
+
+    /**
+     * Build the complete APP1 segment, marker included.
+     */
+    public ByteBuffer buildApp1() {
+        Ifd ifd0 = new Ifd();
+        if (mMake != null) {
+            ifd0.addAscii(TAG_MAKE, mMake);
+        }
+        if (mModel != null) {
+            ifd0.addAscii(TAG_MODEL, mModel);
+        }
+        if (mOrientationDegrees >= 0) {
+            ifd0.addShort(TAG_ORIENTATION, orientationToExif(mOrientationDegrees));
+        }
+        Ifd exifIfd = new Ifd();
+        if (mExposureTimeNs > 0) {
+            exifIfd.addRational(TAG_EXPOSURE_TIME, mExposureTimeNs, 1000000000L);
+        }
+        if (mAperture > 0) {
+            exifIfd.addRational(TAG_F_NUMBER, Math.round(mAperture * 100), 100);
+        }
+        if (mIso > 0) {
+            exifIfd.addShort(TAG_ISO, Math.min(mIso, 0xFFFF));
+        }
+        exifIfd.addUndefined(TAG_EXIF_VERSION, new byte[] {'0', '2', '3', '0'});
+        if (mDateTakenMillis > 0) {
+            Date date = new Date(mDateTakenMillis);
+            exifIfd.addAscii(TAG_DATE_TIME_ORIGINAL,
+                    new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US).format(date));
+        }
+        if (mFocalLength > 0) {
+            exifIfd.addRational(TAG_FOCAL_LENGTH, Math.round(mFocalLength * 1000), 1000);
+        }
+        if (mDateTakenMillis > 0) {
+            exifIfd.addAscii(TAG_SUB_SEC_TIME_ORIGINAL, String.format(Locale.US, "%03d", mDateTakenMillis % 1000));
+        }
+        // Pointer value is patched in once IFD0's size is known; the size doesn't depend on it.
+        ifd0.addLong(TAG_EXIF_IFD, 0);
+
+        int tiffHeaderSize = 8;
+        int exifIfdOffset = tiffHeaderSize + ifd0.size();
+        ifd0.setLong(TAG_EXIF_IFD, exifIfdOffset);
+        int tiffSize = exifIfdOffset + exifIfd.size();
+
+        // IFD1 and the thumbnail go last, and only if they still fit in one segment.
+        Ifd ifd1 = null;
+        int ifd1Offset = 0;
+        int thumbnailTiffOffset = 0;
+        mThumbnailOffset = -1;
+        if (mThumbnail != null) {
+            ifd1 = new Ifd();
+            ifd1.addShort(TAG_COMPRESSION, COMPRESSION_JPEG);
+            ifd1.addLong(TAG_THUMBNAIL_OFFSET, 0);
+            ifd1.addLong(TAG_THUMBNAIL_LENGTH, mThumbnail.length);
+            ifd1Offset = tiffSize;
+            thumbnailTiffOffset = ifd1Offset + ifd1.size();
+            ifd1.setLong(TAG_THUMBNAIL_OFFSET, thumbnailTiffOffset);
+            if (2 + EXIF_HEADER.length + thumbnailTiffOffset + mThumbnail.length > 0xFFFF) {
+                // Dropped: IFD0 must not point at an IFD1 that isn't written.
+                ifd1 = null;
+                ifd1Offset = 0;
+                thumbnailTiffOffset = 0;
+            } else {
+                tiffSize = thumbnailTiffOffset + mThumbnail.length;
+            }
+        }
+        int segmentLength = 2 + EXIF_HEADER.length + tiffSize;
+        if (segmentLength > 0xFFFF) {
+            throw new IllegalStateException("EXIF segment too large: " + segmentLength);
+        }
+
+        ByteBuffer app1 = ByteBuffer.allocate(2 + segmentLength).order(ByteOrder.BIG_ENDIAN);
+        app1.put((byte) 0xFF).put((byte) MARKER_APP1).putShort((short) segmentLength);
+        app1.put(EXIF_HEADER);
+        int tiffStart = app1.position();
+        app1.put((byte) 'M').put((byte) 'M').putShort((short) 0x2A).putInt(tiffHeaderSize);
+        ifd0.write(app1, tiffStart, tiffHeaderSize, ifd1Offset);
+        exifIfd.write(app1, tiffStart, exifIfdOffset, 0);
+        if (ifd1 != null) {
+            ifd1.write(app1, tiffStart, ifd1Offset, 0);
+            app1.position(tiffStart + thumbnailTiffOffset);
+            app1.put(mThumbnail);
+            mThumbnailOffset = tiffStart + thumbnailTiffOffset;
+        }
+        app1.flip();
+        return app1;
+    }
+
+    /**
+     * The JPEG thumbnail in IFD1 of an Exif APP1 already in the stream, e.g. the HAL's.
+     * @return A copy of it, or null if there is none or the segment doesn't parse.
+     */
+    public static byte[] extractThumbnail(byte[] jpeg, int length) {
+        int[] thumbnail = findThumbnail(jpeg, length);
+        return thumbnail != null ? Arrays.copyOfRange(jpeg, thumbnail[0], thumbnail[0] + thumbnail[1]) : null;
+    }
+
+    /**
+     * Like extractThumbnail(), without the copy.
+     * @return {offset in jpeg, length}, or null.
+     */
+    public static int[] findThumbnail(byte[] jpeg, int length) {
+        int[] segment = findExifSegment(jpeg, length);
+        if (segment == null) {
+            return null;
+        }
+        int tiffStart = segment[0] + 4 + EXIF_HEADER.length;
+        int tiffLength = segment[1] - tiffStart;
+        if (tiffLength < 8) {
+            return null;
+        }
+        ByteBuffer tiff = ByteBuffer.wrap(jpeg, tiffStart, tiffLength).slice();
+        if (jpeg[tiffStart] == 'I' && jpeg[tiffStart + 1] == 'I') {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (jpeg[tiffStart] != 'M' || jpeg[tiffStart + 1] != 'M') {
+            return null;
+        }
+        try {
+            int ifd0 = tiff.getInt(4);
+            int ifd1 = tiff.getInt(ifd0 + 2 + 12 * (tiff.getShort(ifd0) & 0xFFFF));
+            if (ifd1 <= 0) {
+                return null;
+            }
+            int entries = tiff.getShort(ifd1) & 0xFFFF;
+            long offset = -1;
+            long size = -1;
+            for (int i = 0; i < entries; i++) {
+                int entry = ifd1 + 2 + 12 * i;
+                int tag = tiff.getShort(entry) & 0xFFFF;
+                int type = tiff.getShort(entry + 2);
+                long value = type == TYPE_SHORT ? tiff.getShort(entry + 8) & 0xFFFF
+                        : tiff.getInt(entry + 8) & 0xFFFFFFFFL;
+                if (tag == TAG_THUMBNAIL_OFFSET) {
+                    offset = value;
+                } else if (tag == TAG_THUMBNAIL_LENGTH) {
+                    size = value;
+                }
+            }
+            if (offset < 0 || size < 2 || offset + size > tiffLength
+                    || (jpeg[tiffStart + (int) offset] & 0xFF) != 0xFF
+                    || (jpeg[tiffStart + (int) offset + 1] & 0xFF) != MARKER_SOI) {
+                return null;
+            }
+            return new int[] {tiffStart + (int) offset, (int) size};
+        } catch (IndexOutOfBoundsException e) {
+            // Offsets pointing outside the segment.
+            return null;
+        }
+    }
+
+    /**
+     * Find an existing Exif APP1 segment among the APPn segments after SOI.
+     * @return {start, end} offsets of the segment, or null if there is none.
+     */
+    static int[] findExifSegment(byte[] jpeg, int length) {
+        int pos = 2;
+        while (pos + 4 <= length && (jpeg[pos] & 0xFF) == 0xFF) {
+            int marker = jpeg[pos + 1] & 0xFF;
+            if (marker < MARKER_APP0 || marker > MARKER_APP15) {
+                break;
+            }
+            int segmentLength = ((jpeg[pos + 2] & 0xFF) << 8) | (jpeg[pos + 3] & 0xFF);
+            int end = pos + 2 + segmentLength;
+            if (segmentLength < 2 || end > length) {
+                break;
+            }
+            if (marker == MARKER_APP1 && segmentLength >= 2 + EXIF_HEADER.length
+                    && hasExifHeader(jpeg, pos + 4)) {
+                return new int[] {pos, end};
+            }
+            pos = end;
+        }
+        return null;
+    }
+
+    private static boolean hasExifHeader(byte[] jpeg, int offset) {
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (jpeg[offset + i] != EXIF_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Where write() puts the APP1 segment: right after SOI, or after a JFIF APP0 that follows it
+     * (JFIF requires APP0 to come first).
+     * @return Offset in the file, or -1 if the data doesn't start with SOI and is written unchanged.
+     */
+    public static int getApp1Position(byte[] jpeg, int length) {
+        if (length < 2 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != MARKER_SOI) {
+            return -1;
+        }
+        if (length >= 6 && (jpeg[2] & 0xFF) == 0xFF && (jpeg[3] & 0xFF) == MARKER_APP0) {
+            int end = 4 + (((jpeg[4] & 0xFF) << 8) | (jpeg[5] & 0xFF));
+            if (end <= length) {
+                return end;
+            }
+        }
+        return 2;
+    }
+
+    /**
+     * Write jpeg to the channel with app1 spliced in at getApp1Position(), in a single gathering
+     * write. If the data doesn't start with SOI it is written unchanged.
+     * @return Number of bytes written.
+     */
+    public static long write(FileChannel channel, ByteBuffer app1, byte[] jpeg, int length) throws IOException {
+        ByteBuffer[] parts;
+        int position = getApp1Position(jpeg, length);
+        if (position < 0) {
+            parts = new ByteBuffer[] {ByteBuffer.wrap(jpeg, 0, length)};
+        } else {
+            int[] old = findExifSegment(jpeg, length);
+            ByteBuffer head = ByteBuffer.wrap(jpeg, 0, position);
+            if (old == null) {
+                parts = new ByteBuffer[] {head, app1, ByteBuffer.wrap(jpeg, position, length - position)};
+            } else {
+                // The old APP1 comes after APP0, so at or after position.
+                parts = new ByteBuffer[] {head, app1,
+                        ByteBuffer.wrap(jpeg, position, old[0] - position),
+                        ByteBuffer.wrap(jpeg, old[1], length - old[1])};
+            }
+        }
+        long remaining = 0;
+        for (ByteBuffer b : parts) {
+            remaining += b.remaining();
+        }
+        long written = 0;
+        while (written < remaining) {
+            written += channel.write(parts);
+        }
+        return written;
+    }
+
+    /**
+     * Map JPEG_ORIENTATION degrees to the EXIF/TIFF orientation value.
+     */
+    static int orientationToExif(int degrees) {
+        switch (((degrees % 360) + 360) % 360) {
+            case 90:
+                return 6;
+            case 180:
+                return 3;
+            case 270:
+                return 8;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * One TIFF image file directory. Entries must be added in ascending tag order.
+     */
+    private static class Ifd {
+        private final List<Integer> mTags = new ArrayList<Integer>();
+        private final List<Short> mTypes = new ArrayList<Short>();
+        private final List<Integer> mCounts = new ArrayList<Integer>();
+        private final List<byte[]> mValues = new ArrayList<byte[]>();
+
+        private void add(int tag, short type, int count, byte[] value) {
+            mTags.add(tag);
+            mTypes.add(type);
+            mCounts.add(count);
+            mValues.add(value);
+        }
+
+        void addAscii(int tag, String s) {
+            byte[] chars = s.getBytes(StandardCharsets.US_ASCII);
+            byte[] value = new byte[chars.length + 1];
+            System.arraycopy(chars, 0, value, 0, chars.length);
+            add(tag, TYPE_ASCII, value.length, value);
+        }
+
+        void addShort(int tag, int v) {
+            add(tag, TYPE_SHORT, 1, ByteBuffer.allocate(2).putShort((short) v).array());
+        }
+
+        void addLong(int tag, int v) {
+            add(tag, TYPE_LONG, 1, ByteBuffer.allocate(4).putInt(v).array());
+        }
+
+        void setLong(int tag, int v) {
+            mValues.set(mTags.indexOf(tag), ByteBuffer.allocate(4).putInt(v).array());
+        }
+
+        void addRational(int tag, long numerator, long denominator) {
+            long gcd = gcd(numerator, denominator);
+            add(tag, TYPE_RATIONAL, 1, ByteBuffer.allocate(8)
+                    .putInt((int) (numerator / gcd)).putInt((int) (denominator / gcd)).array());
+        }
+
+        void addUndefined(int tag, byte[] value) {
+            add(tag, TYPE_UNDEFINED, value.length, value);
+        }
+
+        private static long gcd(long a, long b) {
+            while (b != 0) {
+                long t = a % b;
+                a = b;
+                b = t;
+            }
+            return a == 0 ? 1 : a;
+        }
+
+        private int entriesSize() {
+            return 2 + 12 * mTags.size() + 4;
+        }
+
+        int size() {
+            int size = entriesSize();
+            for (byte[] v : mValues) {
+                if (v.length > 4) {
+                    size += (v.length + 1) & ~1;
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Write entries followed by out-of-line values. Offsets are relative to the TIFF header.
+         * @param nextIfdOffset Offset of the IFD that follows in the chain, 0 for none.
+         */
+        void write(ByteBuffer buf, int tiffStart, int ifdOffset, int nextIfdOffset) {
+            int dataOffset = ifdOffset + entriesSize();
+            buf.position(tiffStart + ifdOffset);
+            buf.putShort((short) mTags.size());
+            for (int i = 0; i < mTags.size(); i++) {
+                byte[] v = mValues.get(i);
+                buf.putShort((short) (int) mTags.get(i));
+                buf.putShort(mTypes.get(i));
+                buf.putInt(mCounts.get(i));
+                if (v.length <= 4) {
+                    buf.put(v);
+                    for (int pad = v.length; pad < 4; pad++) {
+                        buf.put((byte) 0);
+                    }
+                } else {
+                    buf.putInt(dataOffset);
+                    int saved = buf.position();
+                    buf.position(tiffStart + dataOffset);
+                    buf.put(v);
+                    buf.position(saved);
+                    dataOffset += (v.length + 1) & ~1;
+                }
+            }
+            buf.putInt(nextIfdOffset);
+            buf.position(tiffStart + dataOffset);
+        }
+    }
+}
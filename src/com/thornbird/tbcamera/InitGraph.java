@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Initialization tasks with dependencies.
+ *
+ * Critical tasks are the ones the first preview frame needs; runCritical() runs just those
+ * (and whatever they depend on). Everything else runs in runDeferred(), or earlier through
+ * ensure() if somebody needs it first. Each task runs once.
+ *
+ * Records how long each task took and which ones made up the critical path. Tasks run one at
+ * a time on the calling thread, so a task waits for whatever ran before it in the same call,
+ * not just for its dependencies: the critical path is everything runCritical() ran, end to end.
+ */
+public class InitGraph {
+    private static final String TAG = "TBCamera_INIT";
+
+    private static class Task {
+        final String name;
+        final boolean critical;
+        final Runnable body;
+        final String[] deps;
+        boolean done;
+        long startMs;
+        long durationMs;
+        // Time from the start of its run*() / ensure() call to the end of this task, and the
+        // task that ran just before it in that call.
+        long pathMs;
+        Task pathParent;
+
+        Task(String name, boolean critical, Runnable body, String[] deps) {
+            this.name = name;
+            this.critical = critical;
+            this.body = body;
+            this.deps = deps;
+        }
+    }
+
+    private final Map<String, Task> mTasks = new LinkedHashMap<String, Task>();
+    private final long mT0 = SystemClock.elapsedRealtime();
+    // Last task run in the current run*() / ensure() call.
+    private Task mLastRun;
+
+    /**
+     * Add a task. Dependencies must already have been added.
+     * @param critical Whether the first preview frame needs this.
+     */
+    public synchronized void add(String name, boolean critical, Runnable body, String... deps) {
+        for (String dep : deps) {
+            if (!mTasks.containsKey(dep)) {
+                throw new IllegalArgumentException("Task " + name + " depends on unknown task " + dep);
+            }
+        }
+        mTasks.put(name, new Task(name, critical, body, deps));
+    }
+
+    public synchronized boolean has(String name) {
+        return mTasks.containsKey(name);
+    }
+
+    /**
+     * Run the tasks the first preview frame needs.
+     */
+    public synchronized void runCritical() {
+        mLastRun = null;
+        for (Task t : mTasks.values()) {
+            if (t.critical) {
+                run(t);
+            }
+        }
+        Task last = null;
+        for (Task t : mTasks.values()) {
+            if (t.critical && (last == null || t.pathMs > last.pathMs)) {
+                last = t;
+            }
+        }
+        Log.v(TAG, "Critical init done after " + (SystemClock.elapsedRealtime() - mT0)
+                + " ms, critical path " + (last == null ? 0 : last.pathMs) + " ms: " + describePath(last));
+    }
+
+    /**
+     * Run everything that hasn't run yet. Cheap once it has been called.
+     */
+    public synchronized void runDeferred() {
+        mLastRun = null;
+        for (Task t : mTasks.values()) {
+            run(t);
+        }
+    }
+
+    /**
+     * Make sure a task (and its dependencies) has run, running it on this thread if needed.
+     */
+    public synchronized void ensure(String name) {
+        Task t = mTasks.get(name);
+        if (t != null) {
+            mLastRun = null;
+            run(t);
+        }
+    }
+
+    private void run(Task t) {
+        if (t.done) {
+            return;
+        }
+        for (String dep : t.deps) {
+            run(mTasks.get(dep));
+        }
+        // Dependencies ran before the previous task, or are the previous task.
+        t.pathParent = mLastRun;
+        mLastRun = t;
+        t.startMs = SystemClock.elapsedRealtime();
+        t.body.run();
+        t.durationMs = SystemClock.elapsedRealtime() - t.startMs;
+        t.pathMs = t.durationMs + (t.pathParent == null ? 0 : t.pathParent.pathMs);
+        t.done = true;
+        Log.v(TAG, "  " + t.name + (t.critical ? " (critical)" : " (deferred)") + " took "
+                + t.durationMs + " ms");
+    }
+
+    private static String describePath(Task last) {
+        List<String> names = new ArrayList<String>();
+        for (Task t = last; t != null; t = t.pathParent) {
+            names.add(0, t.name + "=" + t.durationMs + "ms");
+        }
+        return names.toString();
+    }
+
+    /**
+     * One line per task: start offset, duration, and what it added to the critical path.
+     */
+    public synchronized String report() {
+        // Tasks runCritical() ran, critical or pulled in as dependencies, contribute their
+        // duration; the rest nothing.
+        Task last = null;
+        for (Task t : mTasks.values()) {
+            if (t.critical && t.done && (last == null || t.pathMs > last.pathMs)) {
+                last = t;
+            }
+        }
+        List<Task> onPath = new ArrayList<Task>();
+        for (Task t = last; t != null; t = t.pathParent) {
+            onPath.add(t);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Task t : mTasks.values()) {
+            sb.append(String.format("%-20s %-8s %s start=+%dms took=%dms critical_path=%dms%n",
+                    t.name, t.critical ? "critical" : "deferred", t.done ? "done" : "pending",
+                    t.startMs - mT0, t.durationMs, onPath.contains(t) ? t.durationMs : 0));
+        }
+        return sb.toString();
+    }
+}
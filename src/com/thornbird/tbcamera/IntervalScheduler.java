@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Timer for interval (timelapse) capture.
+ *
+ * Ticks are scheduled at absolute times from the start, so late ticks don't push the rest
+ * back. Between ticks the target runs preview at its lowest frame rate; for long intervals it
+ * goes fully idle (no repeating request) and is woken WARMUP_MS before each tick so 3A can
+ * settle before the shot.
+ *
+ * Reports how far captured frames were from their ideal times, using sensor timestamps, and
+ * how much process CPU time each captured frame cost.
+ *
+ * All calls on the handler's thread.
+ */
+public class IntervalScheduler {
+    private static final String TAG = "TBCamera_INTERVAL";
+
+    // Intervals at least this long idle the camera between shots.
+    private static final long IDLE_MIN_INTERVAL_MS = 5000;
+    // Time before a shot to restart preview from idle, for AE/AF/AWB to converge.
+    private static final long WARMUP_MS = 1000;
+
+    /**
+     * What the scheduler drives.
+     */
+    public interface Target {
+        /**
+         * Run preview at the lowest frame rate (idle = false), or stop it (idle = true).
+         */
+        void setIdle(boolean idle);
+
+        /**
+         * Start a one-shot capture for the given frame. False if it can't be taken now.
+         */
+        boolean captureFrame(int index);
+
+        /**
+         * Back to normal preview.
+         */
+        void onIntervalCaptureDone();
+    }
+
+    private final Handler mHandler;
+    private final Target mTarget;
+    private final long mIntervalMs;
+    private final int mFrameCount;
+    private final boolean mIdleBetweenShots;
+
+    private long mStartUptimeMs;
+    private long mStartCpuMs;
+    private int mNextIndex;
+    private int mCaptured;
+    private int mMissed;
+    private boolean mRunning;
+
+    // Sensor time of frame 0 and the ideal-time errors since.
+    private long mFirstSensorTimestamp = -1;
+    private int mFirstSensorIndex;
+    private long mErrorSumNs;
+    private long mErrorMaxNs;
+    private long mLastSensorTimestamp;
+    private int mLastSensorIndex;
+
+    /**
+     * @param frameCount Frames to capture, 0 for no limit.
+     */
+    public IntervalScheduler(Handler handler, Target target, long intervalMs, int frameCount) {
+        mHandler = handler;
+        mTarget = target;
+        mIntervalMs = intervalMs;
+        mFrameCount = frameCount;
+        mIdleBetweenShots = intervalMs >= IDLE_MIN_INTERVAL_MS;
+    }
+
+    public void start() {
+        mRunning = true;
+        mStartUptimeMs = SystemClock.uptimeMillis();
+        mStartCpuMs = Process.getElapsedCpuTime();
+        Log.v(TAG, "Interval capture every " + mIntervalMs + " ms, "
+                + (mFrameCount > 0 ? mFrameCount + " frames" : "until stopped")
+                + (mIdleBetweenShots ? ", idle between shots" : ", low frame rate preview between shots"));
+        // First shot right away, with preview still warm.
+        mTarget.setIdle(false);
+        mHandler.post(mTick);
+    }
+
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mHandler.removeCallbacks(mTick);
+        mHandler.removeCallbacks(mWarmup);
+        Log.v(TAG, "Interval capture done: " + getReport());
+        mTarget.onIntervalCaptureDone();
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    private final Runnable mWarmup = new Runnable() {
+        @Override
+        public void run() {
+            mTarget.setIdle(false);
+        }
+    };
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRunning) {
+                return;
+            }
+            int index = mNextIndex++;
+            boolean issued = mTarget.captureFrame(index);
+            if (!issued) {
+                mMissed++;
+                Log.w(TAG, "Frame " + index + " missed, capture held back.");
+                if (mIdleBetweenShots) {
+                    mTarget.setIdle(true);
+                }
+            }
+            if (mFrameCount > 0 && mNextIndex >= mFrameCount) {
+                if (!issued) {
+                    stop();
+                }
+                // Otherwise onFrameCaptured() stops once the last frame is in.
+                return;
+            }
+            long next = mStartUptimeMs + mNextIndex * mIntervalMs;
+            // More than half an interval behind: skip ticks rather than bunching them up.
+            long now = SystemClock.uptimeMillis();
+            while (next < now - mIntervalMs / 2) {
+                mNextIndex++;
+                mMissed++;
+                next += mIntervalMs;
+            }
+            if (mFrameCount > 0 && mNextIndex >= mFrameCount) {
+                stop();
+                return;
+            }
+            if (mIdleBetweenShots) {
+                mHandler.postAtTime(mWarmup, next - WARMUP_MS);
+            }
+            mHandler.postAtTime(mTick, next);
+        }
+    };
+
+    /**
+     * The frame for a captureFrame() call was exposed at this sensor time (or failed, with
+     * a negative timestamp).
+     */
+    public void onFrameCaptured(int index, long sensorTimestampNs) {
+        if (sensorTimestampNs >= 0) {
+            mCaptured++;
+            if (mFirstSensorTimestamp < 0) {
+                mFirstSensorTimestamp = sensorTimestampNs;
+                mFirstSensorIndex = index;
+            } else {
+                long ideal = mFirstSensorTimestamp + (index - mFirstSensorIndex) * mIntervalMs * 1000000L;
+                long error = Math.abs(sensorTimestampNs - ideal);
+                mErrorSumNs += error;
+                mErrorMaxNs = Math.max(mErrorMaxNs, error);
+            }
+            mLastSensorTimestamp = sensorTimestampNs;
+            mLastSensorIndex = index;
+        } else {
+            mMissed++;
+        }
+        if (!mRunning) {
+            return;
+        }
+        if (mIdleBetweenShots && index == mNextIndex - 1) {
+            mTarget.setIdle(true);
+        }
+        if (mFrameCount > 0 && index >= mFrameCount - 1) {
+            stop();
+        }
+    }
+
+    public String getReport() {
+        int measured = mCaptured - 1;
+        long cpuMs = Process.getElapsedCpuTime() - mStartCpuMs;
+        double meanIntervalMs = mLastSensorIndex > mFirstSensorIndex
+                ? (mLastSensorTimestamp - mFirstSensorTimestamp) / 1e6 / (mLastSensorIndex - mFirstSensorIndex)
+                : 0;
+        return String.format("%d captured, %d missed, target %d ms, mean interval %.1f ms, "
+                        + "error mean %.1f ms max %.1f ms, cpu %.1f ms/frame",
+                mCaptured, mMissed, mIntervalMs, meanIntervalMs,
+                measured > 0 ? mErrorSumNs / 1e6 / measured : 0.0, mErrorMaxNs / 1e6,
+                mCaptured > 0 ? (double) cpuMs / mCaptured : 0.0);
+    }
+}
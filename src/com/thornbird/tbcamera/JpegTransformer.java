@@ -0,0 +1,1249 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Lossless rotation, mirroring and cropping of baseline JPEGs.
+ *
+ * Works on quantized DCT coefficients: the entropy coded data is decoded to coefficient blocks,
+ * blocks are moved to their new position and transposed / sign flipped in place of rotating
+ * pixels, and the result is entropy coded again with Huffman tables optimized for it. There is
+ * no IDCT and no requantization, so the image data is bit exact.
+ *
+ * Like jpegtran -trim, a flip drops the partial MCU at the edge that would otherwise move to
+ * the opposite side, so an image that isn't a whole number of MCUs loses up to 15 pixels
+ * there. Crop origins are rounded down to the MCU grid.
+ *
+ * Input restart intervals are decoded in parallel. Output always gets one restart interval per
+ * MCU row, so encoding runs in parallel too, and so does the next transform of the same file.
+ *
+ * Supports 8-bit sequential Huffman JPEGs (SOF0/SOF1) with one scan and one or three
+ * components, which is what camera HALs produce. Plain Java; one transform at a time.
+ */
+public class JpegTransformer {
+    // Zigzag position -> natural (row-major) coefficient index.
+    private static final int[] NATURAL = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63,
+    };
+    private static final int[] ZIGZAG = new int[64];
+    static {
+        for (int k = 0; k < 64; k++) {
+            ZIGZAG[NATURAL[k]] = k;
+        }
+    }
+
+    private static final int LOOKUP_BITS = 9;
+
+    private final ForkJoinPool mPool;
+    private int mRotation;
+    private boolean mMirror;
+    private int mCropX;
+    private int mCropY;
+    private int mCropWidth = -1;
+    private int mCropHeight = -1;
+
+    private int mOutputWidth;
+    private int mOutputHeight;
+    private long mLastTransformNanos;
+
+    // Parsed input. Valid during one transform.
+    private byte[] mData;
+    private int mWidth;
+    private int mHeight;
+    private int mFrameMarker;
+    private int mRestartInterval;
+    private final int[][] mQuant = new int[4][];
+    private final int[] mQuantPrecision = new int[4];
+    private final HuffmanTable[] mDcTables = new HuffmanTable[4];
+    private final HuffmanTable[] mAcTables = new HuffmanTable[4];
+    private final List<int[]> mKeptSegments = new ArrayList<int[]>();
+    private Component[] mComponents;
+    private int mMaxH;
+    private int mMaxV;
+    private int mMcusX;
+    private int mMcusY;
+    private final List<int[]> mEntropySegments = new ArrayList<int[]>();
+
+    private static class Component {
+        int id;
+        int h;
+        int v;
+        int tq;
+        int td;
+        int ta;
+        // Padded block grid and its coefficients, 64 per block in zigzag order.
+        int blocksWide;
+        int blocksHigh;
+        short[] coef;
+    }
+
+    public JpegTransformer() {
+        this(new ForkJoinPool(Runtime.getRuntime().availableProcessors()));
+    }
+
+    public JpegTransformer(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Clockwise rotation: 0, 90, 180 or 270.
+     */
+    public synchronized JpegTransformer setRotation(int degrees) {
+        if (degrees % 90 != 0) {
+            throw new IllegalArgumentException("Rotation must be a multiple of 90: " + degrees);
+        }
+        mRotation = ((degrees % 360) + 360) % 360;
+        return this;
+    }
+
+    /**
+     * Mirror left-right, after rotating.
+     */
+    public synchronized JpegTransformer setMirror(boolean mirror) {
+        mMirror = mirror;
+        return this;
+    }
+
+    /**
+     * Crop the transformed image. The origin is rounded down to the MCU grid.
+     * A negative width or height means up to the edge.
+     */
+    public synchronized JpegTransformer setCrop(int x, int y, int width, int height) {
+        mCropX = x;
+        mCropY = y;
+        mCropWidth = width;
+        mCropHeight = height;
+        return this;
+    }
+
+    public synchronized boolean isIdentity() {
+        return mRotation == 0 && !mMirror && mCropX == 0 && mCropY == 0 && mCropWidth < 0 && mCropHeight < 0;
+    }
+
+    /**
+     * Whether the current settings swap width and height.
+     */
+    public synchronized boolean swapsDimensions() {
+        return mRotation == 90 || mRotation == 270;
+    }
+
+    public synchronized int getOutputWidth() {
+        return mOutputWidth;
+    }
+
+    public synchronized int getOutputHeight() {
+        return mOutputHeight;
+    }
+
+    public synchronized long getLastTransformNanos() {
+        return mLastTransformNanos;
+    }
+
+    /**
+     * Transform length bytes of a JPEG.
+     */
+    public byte[] transform(byte[] jpeg, int length) throws IOException {
+        GrowableBuffer out = new GrowableBuffer(length + 4096);
+        transform(jpeg, 0, length, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Transform the remaining bytes of a buffer into a stream.
+     */
+    public void transform(ByteBuffer jpeg, OutputStream out) throws IOException {
+        byte[] data;
+        int offset;
+        int length = jpeg.remaining();
+        if (jpeg.hasArray()) {
+            data = jpeg.array();
+            offset = jpeg.arrayOffset() + jpeg.position();
+        } else {
+            data = new byte[length];
+            jpeg.duplicate().get(data);
+            offset = 0;
+        }
+        GrowableBuffer buffer = new GrowableBuffer(length + 4096);
+        transform(data, offset, length, buffer);
+        buffer.writeTo(out);
+    }
+
+    private synchronized void transform(byte[] data, int offset, int length, GrowableBuffer out)
+            throws IOException {
+        long t0 = System.nanoTime();
+        try {
+            parse(data, offset, length);
+            decode();
+            encode(out);
+        } finally {
+            // Don't hold on to the coefficients between transforms.
+            mData = null;
+            if (mComponents != null) {
+                for (Component c : mComponents) {
+                    // Null if parsing stopped before the component was read.
+                    if (c != null) {
+                        c.coef = null;
+                    }
+                }
+            }
+        }
+        mLastTransformNanos = System.nanoTime() - t0;
+    }
+
+    /*********
+     * Parse *
+     *********/
+
+    private void parse(byte[] data, int offset, int length) throws IOException {
+        mData = data;
+        mComponents = null;
+        mRestartInterval = 0;
+        mKeptSegments.clear();
+        mEntropySegments.clear();
+        for (int i = 0; i < 4; i++) {
+            mQuant[i] = null;
+            mDcTables[i] = null;
+            mAcTables[i] = null;
+        }
+        int end = offset + length;
+        if (length < 4 || u8(offset) != 0xFF || u8(offset + 1) != 0xD8) {
+            throw new IOException("Not a JPEG");
+        }
+        int p = offset + 2;
+        boolean scanned = false;
+        while (p < end) {
+            if (u8(p) != 0xFF) {
+                throw new IOException("Expected marker at " + (p - offset));
+            }
+            while (p < end && u8(p) == 0xFF) {
+                p++;
+            }
+            need(p, 1, end);
+            int marker = u8(p++);
+            if (marker == 0xD9) {
+                break;
+            }
+            need(p, 2, end);
+            int segmentLength = u16(p);
+            int body = p + 2;
+            int next = p + segmentLength;
+            if (segmentLength < 2 || next > end) {
+                throw new IOException("Truncated segment " + Integer.toHexString(marker));
+            }
+            if (scanned && marker != 0xDA) {
+                // Anything after the scan but EOI is ignored.
+                p = next;
+                continue;
+            }
+            switch (marker) {
+                case 0xDB:
+                    parseDqt(body, next);
+                    break;
+                case 0xC4:
+                    parseDht(body, next);
+                    break;
+                case 0xC0:
+                case 0xC1:
+                    parseSof(marker, body, next);
+                    break;
+                case 0xDD:
+                    need(body, 2, next);
+                    mRestartInterval = u16(body);
+                    break;
+                case 0xDA:
+                    if (scanned) {
+                        throw new IOException("Multi-scan JPEGs are not supported");
+                    }
+                    next = parseSos(body, next, end);
+                    scanned = true;
+                    break;
+                default:
+                    if (marker >= 0xC2 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8
+                            && marker != 0xCC) {
+                        throw new IOException("Unsupported JPEG process, SOF " + Integer.toHexString(marker));
+                    }
+                    if ((marker >= 0xE0 && marker <= 0xEF) || marker == 0xFE) {
+                        // APPn and comments go to the output as they are.
+                        mKeptSegments.add(new int[] {p - 2, segmentLength + 2});
+                    }
+                    break;
+            }
+            p = next;
+        }
+        if (!scanned) {
+            throw new IOException("No scan in JPEG");
+        }
+    }
+
+    private void parseDqt(int p, int end) throws IOException {
+        while (p < end) {
+            int pq = u8(p) >> 4;
+            int tq = u8(p) & 15;
+            p++;
+            if (tq > 3) {
+                throw new IOException("Bad DQT");
+            }
+            need(p, pq == 0 ? 64 : 128, end);
+            int[] table = new int[64];
+            for (int k = 0; k < 64; k++) {
+                table[k] = pq == 0 ? u8(p + k) : u16(p + 2 * k);
+            }
+            p += pq == 0 ? 64 : 128;
+            mQuant[tq] = table;
+            mQuantPrecision[tq] = pq;
+        }
+    }
+
+    private void parseDht(int p, int end) throws IOException {
+        while (p < end) {
+            int tc = u8(p) >> 4;
+            int th = u8(p) & 15;
+            p++;
+            if (tc > 1 || th > 3) {
+                throw new IOException("Bad DHT");
+            }
+            need(p, 16, end);
+            int[] bits = new int[17];
+            int count = 0;
+            for (int i = 1; i <= 16; i++) {
+                bits[i] = u8(p + i - 1);
+                count += bits[i];
+            }
+            p += 16;
+            need(p, count, end);
+            int[] values = new int[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = u8(p + i);
+            }
+            p += count;
+            HuffmanTable table = new HuffmanTable(bits, values);
+            if (tc == 0) {
+                mDcTables[th] = table;
+            } else {
+                mAcTables[th] = table;
+            }
+        }
+    }
+
+    private void parseSof(int marker, int p, int end) throws IOException {
+        need(p, 6, end);
+        if (u8(p) != 8) {
+            throw new IOException("Only 8-bit JPEGs are supported");
+        }
+        mFrameMarker = marker;
+        mHeight = u16(p + 1);
+        mWidth = u16(p + 3);
+        int nf = u8(p + 5);
+        if ((nf != 1 && nf != 3) || mWidth == 0 || mHeight == 0) {
+            throw new IOException("Unsupported frame: " + nf + " components, " + mWidth + "x" + mHeight);
+        }
+        need(p + 6, 3 * nf, end);
+        mComponents = new Component[nf];
+        mMaxH = 1;
+        mMaxV = 1;
+        for (int i = 0; i < nf; i++) {
+            Component c = new Component();
+            int q = p + 6 + 3 * i;
+            c.id = u8(q);
+            c.h = nf == 1 ? 1 : u8(q + 1) >> 4;
+            c.v = nf == 1 ? 1 : u8(q + 1) & 15;
+            c.tq = u8(q + 2) & 3;
+            if (c.h < 1 || c.h > 4 || c.v < 1 || c.v > 4) {
+                throw new IOException("Bad sampling factors");
+            }
+            mMaxH = Math.max(mMaxH, c.h);
+            mMaxV = Math.max(mMaxV, c.v);
+            mComponents[i] = c;
+        }
+        mMcusX = (mWidth + 8 * mMaxH - 1) / (8 * mMaxH);
+        mMcusY = (mHeight + 8 * mMaxV - 1) / (8 * mMaxV);
+        for (Component c : mComponents) {
+            c.blocksWide = mMcusX * c.h;
+            c.blocksHigh = mMcusY * c.v;
+        }
+    }
+
+    // Returns where parsing continues: just past the entropy coded data.
+    private int parseSos(int p, int headerEnd, int end) throws IOException {
+        if (mComponents == null) {
+            throw new IOException("SOS before SOF");
+        }
+        need(p, 1, headerEnd);
+        int ns = u8(p);
+        if (ns != mComponents.length) {
+            throw new IOException("Multi-scan JPEGs are not supported");
+        }
+        need(p + 1, 2 * ns + 3, headerEnd);
+        for (int i = 0; i < ns; i++) {
+            int cs = u8(p + 1 + 2 * i);
+            int t = u8(p + 2 + 2 * i);
+            Component c = null;
+            for (Component candidate : mComponents) {
+                if (candidate.id == cs) {
+                    c = candidate;
+                }
+            }
+            if (c == null) {
+                throw new IOException("Scan references unknown component " + cs);
+            }
+            c.td = t >> 4;
+            c.ta = t & 15;
+            if (c.td > 3 || c.ta > 3 || mDcTables[c.td] == null || mAcTables[c.ta] == null
+                    || mQuant[c.tq] == null) {
+                throw new IOException("Missing tables for component " + cs);
+            }
+        }
+        int q = p + 1 + 2 * ns;
+        if (u8(q) != 0 || u8(q + 1) != 63 || u8(q + 2) != 0) {
+            throw new IOException("Not a sequential scan");
+        }
+        for (Component c : mComponents) {
+            c.coef = new short[c.blocksWide * c.blocksHigh * 64];
+        }
+        // Entropy coded data runs to the first marker that isn't stuffing or RSTn.
+        int start = headerEnd;
+        int i = start;
+        int segmentStart = start;
+        while (i + 1 < end) {
+            if (u8(i) != 0xFF) {
+                i++;
+                continue;
+            }
+            int m = u8(i + 1);
+            if (m == 0x00) {
+                i += 2;
+            } else if (m >= 0xD0 && m <= 0xD7) {
+                mEntropySegments.add(new int[] {segmentStart, i});
+                i += 2;
+                segmentStart = i;
+            } else if (m == 0xFF) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        mEntropySegments.add(new int[] {segmentStart, i});
+        return i;
+    }
+
+    // Segments are parsed within the caller's length, not the array's.
+    private static void need(int p, int n, int end) throws IOException {
+        if (p + n > end) {
+            throw new IOException("Truncated JPEG");
+        }
+    }
+
+    private int u8(int p) {
+        return mData[p] & 0xFF;
+    }
+
+    private int u16(int p) {
+        return ((mData[p] & 0xFF) << 8) | (mData[p + 1] & 0xFF);
+    }
+
+    /**********
+     * Decode *
+     **********/
+
+    private void decode() throws IOException {
+        final int totalMcus = mMcusX * mMcusY;
+        final int interval = mRestartInterval > 0 ? mRestartInterval : totalMcus;
+        final int segments = Math.min(mEntropySegments.size(), (totalMcus + interval - 1) / interval);
+        runParallel(segments, new RangeBody() {
+            @Override
+            public void run(int from, int to) throws IOException {
+                for (int s = from; s < to; s++) {
+                    int[] range = mEntropySegments.get(s);
+                    decodeSegment(range[0], range[1], s * interval, Math.min(totalMcus, (s + 1) * interval));
+                }
+            }
+        });
+    }
+
+    private void decodeSegment(int start, int end, int firstMcu, int endMcu) throws IOException {
+        BitReader in = new BitReader(mData, start, end);
+        int[] pred = new int[mComponents.length];
+        for (int m = firstMcu; m < endMcu; m++) {
+            int mx = m % mMcusX;
+            int my = m / mMcusX;
+            for (int ci = 0; ci < mComponents.length; ci++) {
+                Component c = mComponents[ci];
+                HuffmanTable dc = mDcTables[c.td];
+                HuffmanTable ac = mAcTables[c.ta];
+                for (int v = 0; v < c.v; v++) {
+                    for (int h = 0; h < c.h; h++) {
+                        int bx = mx * c.h + h;
+                        int by = my * c.v + v;
+                        int base = (by * c.blocksWide + bx) * 64;
+                        short[] coef = c.coef;
+                        int t = in.decode(dc);
+                        int diff = t == 0 ? 0 : extend(in.bits(t), t);
+                        pred[ci] += diff;
+                        coef[base] = (short) pred[ci];
+                        for (int k = 1; k < 64; k++) {
+                            int rs = in.decode(ac);
+                            int r = rs >> 4;
+                            int s = rs & 15;
+                            if (s == 0) {
+                                if (r != 15) {
+                                    break;
+                                }
+                                k += 15;
+                            } else {
+                                k += r;
+                                if (k > 63) {
+                                    throw new IOException("Bad AC run");
+                                }
+                                coef[base + k] = (short) extend(in.bits(s), s);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static int extend(int value, int bits) {
+        return value < (1 << (bits - 1)) ? value - (1 << bits) + 1 : value;
+    }
+
+    /*************
+     * Transform *
+     *************/
+
+    // Output geometry and the mapping back to source blocks.
+    private boolean mTranspose;
+    private boolean mFlipH;
+    private boolean mFlipV;
+    private int[] mOutH;
+    private int[] mOutV;
+    private int mOutMaxH;
+    private int mOutMaxV;
+    private int mOutMcusX;
+    private int mOutMcusY;
+    // Crop origin and flip extent in MCUs of the transformed image.
+    private int mCropMcuX;
+    private int mCropMcuY;
+    private int mFlipMcusX;
+    private int mFlipMcusY;
+    // Output zigzag index -> source zigzag index, and sign.
+    private final int[] mSource = new int[64];
+    private final int[] mSign = new int[64];
+
+    private void setUpTransform() throws IOException {
+        // Rotation as transpose, then flips in the output frame; mirror toggles the left-right flip.
+        switch (mRotation) {
+            case 90:
+                mTranspose = true;
+                mFlipH = true;
+                mFlipV = false;
+                break;
+            case 180:
+                mTranspose = false;
+                mFlipH = true;
+                mFlipV = true;
+                break;
+            case 270:
+                mTranspose = true;
+                mFlipH = false;
+                mFlipV = true;
+                break;
+            default:
+                mTranspose = false;
+                mFlipH = false;
+                mFlipV = false;
+                break;
+        }
+        mFlipH ^= mMirror;
+
+        int n = mComponents.length;
+        mOutH = new int[n];
+        mOutV = new int[n];
+        for (int i = 0; i < n; i++) {
+            mOutH[i] = mTranspose ? mComponents[i].v : mComponents[i].h;
+            mOutV[i] = mTranspose ? mComponents[i].h : mComponents[i].v;
+        }
+        mOutMaxH = mTranspose ? mMaxV : mMaxH;
+        mOutMaxV = mTranspose ? mMaxH : mMaxV;
+        int mcuW = 8 * mOutMaxH;
+        int mcuH = 8 * mOutMaxV;
+        int width = mTranspose ? mHeight : mWidth;
+        int height = mTranspose ? mWidth : mHeight;
+        if (mFlipH) {
+            width = width / mcuW * mcuW;
+        }
+        if (mFlipV) {
+            height = height / mcuH * mcuH;
+        }
+        mFlipMcusX = width / mcuW;
+        mFlipMcusY = height / mcuH;
+        int cropX = Math.max(0, Math.min(mCropX / mcuW * mcuW, width - 1));
+        int cropY = Math.max(0, Math.min(mCropY / mcuH * mcuH, height - 1));
+        mOutputWidth = mCropWidth < 0 ? width - cropX : Math.min(mCropWidth, width - cropX);
+        mOutputHeight = mCropHeight < 0 ? height - cropY : Math.min(mCropHeight, height - cropY);
+        if (mOutputWidth <= 0 || mOutputHeight <= 0) {
+            throw new IOException("Nothing left after trimming/cropping " + mWidth + "x" + mHeight);
+        }
+        mCropMcuX = cropX / mcuW;
+        mCropMcuY = cropY / mcuH;
+        mOutMcusX = (mOutputWidth + mcuW - 1) / mcuW;
+        mOutMcusY = (mOutputHeight + mcuH - 1) / mcuH;
+
+        for (int k = 0; k < 64; k++) {
+            int u = NATURAL[k] & 7;
+            int v = NATURAL[k] >> 3;
+            mSource[k] = mTranspose ? ZIGZAG[u * 8 + v] : k;
+            int sign = 1;
+            if (mFlipH && (u & 1) != 0) {
+                sign = -sign;
+            }
+            if (mFlipV && (v & 1) != 0) {
+                sign = -sign;
+            }
+            mSign[k] = sign;
+        }
+    }
+
+    // Coefficients of output block (obx, oby) of component ci, in zigzag order.
+    private void fetchBlock(int ci, int obx, int oby, int[] out) {
+        Component c = mComponents[ci];
+        int tx = obx + mCropMcuX * mOutH[ci];
+        int ty = oby + mCropMcuY * mOutV[ci];
+        if (mFlipH) {
+            tx = mFlipMcusX * mOutH[ci] - 1 - tx;
+        }
+        if (mFlipV) {
+            ty = mFlipMcusY * mOutV[ci] - 1 - ty;
+        }
+        int sx = mTranspose ? ty : tx;
+        int sy = mTranspose ? tx : ty;
+        sx = Math.max(0, Math.min(c.blocksWide - 1, sx));
+        sy = Math.max(0, Math.min(c.blocksHigh - 1, sy));
+        int base = (sy * c.blocksWide + sx) * 64;
+        short[] coef = c.coef;
+        for (int k = 0; k < 64; k++) {
+            out[k] = mSign[k] * coef[base + mSource[k]];
+        }
+    }
+
+    /**********
+     * Encode *
+     **********/
+
+    private void encode(GrowableBuffer out) throws IOException {
+        setUpTransform();
+        final int n = mComponents.length;
+
+        // Pass 1: symbol statistics for optimal tables, one MCU row per task unit.
+        final long[][][] dcFreq = new long[mOutMcusY][4][];
+        final long[][][] acFreq = new long[mOutMcusY][4][];
+        runParallel(mOutMcusY, new RangeBody() {
+            @Override
+            public void run(int from, int to) {
+                int[] block = new int[64];
+                for (int row = from; row < to; row++) {
+                    long[][] dc = dcFreq[row];
+                    long[][] ac = acFreq[row];
+                    for (Component c : mComponents) {
+                        if (dc[c.td] == null) {
+                            dc[c.td] = new long[257];
+                        }
+                        if (ac[c.ta] == null) {
+                            ac[c.ta] = new long[257];
+                        }
+                    }
+                    encodeRow(row, block, dc, ac, null, null, null);
+                }
+            }
+        });
+        final HuffmanCode[] dcCodes = new HuffmanCode[4];
+        final HuffmanCode[] acCodes = new HuffmanCode[4];
+        for (int t = 0; t < 4; t++) {
+            long[] dc = sumFrequencies(dcFreq, t);
+            long[] ac = sumFrequencies(acFreq, t);
+            if (dc != null) {
+                dcCodes[t] = HuffmanCode.optimal(dc);
+            }
+            if (ac != null) {
+                acCodes[t] = HuffmanCode.optimal(ac);
+            }
+        }
+
+        // Pass 2: each MCU row is a restart interval of its own.
+        final GrowableBuffer[] rows = new GrowableBuffer[mOutMcusY];
+        final int estimate = (mData.length / Math.max(1, mOutMcusY)) + 64;
+        runParallel(mOutMcusY, new RangeBody() {
+            @Override
+            public void run(int from, int to) {
+                int[] block = new int[64];
+                for (int row = from; row < to; row++) {
+                    BitWriter writer = new BitWriter(estimate);
+                    encodeRow(row, block, null, null, writer, dcCodes, acCodes);
+                    rows[row] = writer.finish();
+                }
+            }
+        });
+
+        writeHeaders(out, dcCodes, acCodes);
+        for (int row = 0; row < mOutMcusY; row++) {
+            if (row > 0) {
+                out.write(0xFF);
+                out.write(0xD0 + ((row - 1) & 7));
+            }
+            rows[row].writeTo(out);
+        }
+        out.write(0xFF);
+        out.write(0xD9);
+    }
+
+    private static long[] sumFrequencies(long[][][] perRow, int table) {
+        long[] sum = null;
+        for (long[][] row : perRow) {
+            long[] f = row[table];
+            if (f == null) {
+                continue;
+            }
+            if (sum == null) {
+                sum = new long[257];
+            }
+            for (int i = 0; i < 256; i++) {
+                sum[i] += f[i];
+            }
+        }
+        return sum;
+    }
+
+    // Either counts symbols (frequencies given) or writes them (writer given).
+    private void encodeRow(int row, int[] block, long[][] dcFreq, long[][] acFreq, BitWriter writer,
+            HuffmanCode[] dcCodes, HuffmanCode[] acCodes) {
+        int n = mComponents.length;
+        int[] pred = new int[n];
+        for (int mx = 0; mx < mOutMcusX; mx++) {
+            for (int ci = 0; ci < n; ci++) {
+                Component c = mComponents[ci];
+                for (int v = 0; v < mOutV[ci]; v++) {
+                    for (int h = 0; h < mOutH[ci]; h++) {
+                        fetchBlock(ci, mx * mOutH[ci] + h, row * mOutV[ci] + v, block);
+                        int diff = block[0] - pred[ci];
+                        pred[ci] = block[0];
+                        if (writer == null) {
+                            countBlock(block, diff, dcFreq[c.td], acFreq[c.ta]);
+                        } else {
+                            writeBlock(block, diff, writer, dcCodes[c.td], acCodes[c.ta]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void countBlock(int[] block, int diff, long[] dc, long[] ac) {
+        dc[bitLength(diff)]++;
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = block[k];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                ac[0xF0]++;
+                run -= 16;
+            }
+            ac[(run << 4) | bitLength(value)]++;
+            run = 0;
+        }
+        if (run > 0) {
+            ac[0x00]++;
+        }
+    }
+
+    private static void writeBlock(int[] block, int diff, BitWriter out, HuffmanCode dc, HuffmanCode ac) {
+        int size = bitLength(diff);
+        out.put(dc.code[size], dc.size[size]);
+        if (size > 0) {
+            out.put((diff < 0 ? diff - 1 : diff) & ((1 << size) - 1), size);
+        }
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = block[k];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                out.put(ac.code[0xF0], ac.size[0xF0]);
+                run -= 16;
+            }
+            size = bitLength(value);
+            int symbol = (run << 4) | size;
+            out.put(ac.code[symbol], ac.size[symbol]);
+            out.put((value < 0 ? value - 1 : value) & ((1 << size) - 1), size);
+            run = 0;
+        }
+        if (run > 0) {
+            out.put(ac.code[0x00], ac.size[0x00]);
+        }
+    }
+
+    private static int bitLength(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    private void writeHeaders(GrowableBuffer out, HuffmanCode[] dcCodes, HuffmanCode[] acCodes) {
+        out.write(0xFF);
+        out.write(0xD8);
+        for (int[] segment : mKeptSegments) {
+            out.write(mData, segment[0], segment[1]);
+        }
+
+        for (int t = 0; t < 4; t++) {
+            if (mQuant[t] == null) {
+                continue;
+            }
+            int pq = mQuantPrecision[t];
+            segmentHeader(out, 0xDB, 1 + (pq == 0 ? 64 : 128));
+            out.write((pq << 4) | t);
+            for (int k = 0; k < 64; k++) {
+                // A transposed block needs the transposed table.
+                int q = mQuant[t][mSource[k]];
+                if (pq != 0) {
+                    out.write(q >> 8);
+                }
+                out.write(q & 0xFF);
+            }
+        }
+
+        int n = mComponents.length;
+        segmentHeader(out, mFrameMarker, 6 + 3 * n);
+        out.write(8);
+        write16(out, mOutputHeight);
+        write16(out, mOutputWidth);
+        out.write(n);
+        for (int i = 0; i < n; i++) {
+            out.write(mComponents[i].id);
+            out.write((mOutH[i] << 4) | mOutV[i]);
+            out.write(mComponents[i].tq);
+        }
+
+        for (int t = 0; t < 4; t++) {
+            writeHuffmanTable(out, 0, t, dcCodes[t]);
+            writeHuffmanTable(out, 1, t, acCodes[t]);
+        }
+
+        segmentHeader(out, 0xDD, 2);
+        write16(out, mOutMcusX);
+
+        segmentHeader(out, 0xDA, 1 + 2 * n + 3);
+        out.write(n);
+        for (Component c : mComponents) {
+            out.write(c.id);
+            out.write((c.td << 4) | c.ta);
+        }
+        out.write(0);
+        out.write(63);
+        out.write(0);
+    }
+
+    private static void writeHuffmanTable(GrowableBuffer out, int tableClass, int id, HuffmanCode code) {
+        if (code == null) {
+            return;
+        }
+        segmentHeader(out, 0xC4, 1 + 16 + code.values.length);
+        out.write((tableClass << 4) | id);
+        for (int i = 1; i <= 16; i++) {
+            out.write(code.bits[i]);
+        }
+        for (int value : code.values) {
+            out.write(value);
+        }
+    }
+
+    private static void segmentHeader(GrowableBuffer out, int marker, int bodyLength) {
+        out.write(0xFF);
+        out.write(marker);
+        write16(out, bodyLength + 2);
+    }
+
+    private static void write16(GrowableBuffer out, int value) {
+        out.write(value >> 8);
+        out.write(value & 0xFF);
+    }
+
+    /************
+     * Parallel *
+     ************/
+
+    private interface RangeBody {
+        void run(int from, int to) throws IOException;
+    }
+
+    private void runParallel(final int count, final RangeBody body) throws IOException {
+        final int grain = Math.max(1, count / (mPool.getParallelism() * 4));
+        try {
+            mPool.invoke(new RangeTask(body, 0, count, grain));
+        } catch (RuntimeException e) {
+            // ForkJoinPool may wrap the task's exception again, so look all the way down.
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw e;
+        }
+    }
+
+    private static class RangeTask extends RecursiveAction {
+        private final RangeBody mBody;
+        private final int mFrom;
+        private final int mTo;
+        private final int mGrain;
+
+        RangeTask(RangeBody body, int from, int to, int grain) {
+            mBody = body;
+            mFrom = from;
+            mTo = to;
+            mGrain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= mGrain) {
+                try {
+                    mBody.run(mFrom, mTo);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            invokeAll(new RangeTask(mBody, mFrom, mid, mGrain), new RangeTask(mBody, mid, mTo, mGrain));
+        }
+    }
+
+    /***********
+     * Huffman *
+     ***********/
+
+    private static class HuffmanTable {
+        final int[] values;
+        final int[] maxCode = new int[18];
+        final int[] valPtr = new int[17];
+        final int[] minCode = new int[17];
+        // (length << 8) | symbol for codes of up to LOOKUP_BITS bits, 0 otherwise.
+        final int[] lookup = new int[1 << LOOKUP_BITS];
+
+        HuffmanTable(int[] bits, int[] values) throws IOException {
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for (int len = 1; len <= 16; len++) {
+                valPtr[len] = k;
+                minCode[len] = code;
+                for (int i = 0; i < bits[len]; i++) {
+                    // More codes than fit in len bits: not a valid prefix code.
+                    if (k >= values.length || code >= (1 << len)) {
+                        throw new IOException("Bad Huffman table");
+                    }
+                    if (len <= LOOKUP_BITS) {
+                        int shift = LOOKUP_BITS - len;
+                        for (int j = 0; j < (1 << shift); j++) {
+                            lookup[(code << shift) | j] = (len << 8) | values[k];
+                        }
+                    }
+                    code++;
+                    k++;
+                }
+                maxCode[len] = bits[len] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+
+    private static class HuffmanCode {
+        final int[] bits = new int[17];
+        int[] values;
+        final int[] code = new int[256];
+        final int[] size = new int[256];
+
+        /**
+         * Length limited optimal code, as in JPEG Annex K.2. freq has 257 entries, the last
+         * reserved so no real code is all ones.
+         */
+        static HuffmanCode optimal(long[] counts) {
+            long[] freq = new long[257];
+            boolean any = false;
+            for (int i = 0; i < 256; i++) {
+                freq[i] = counts[i];
+                any |= counts[i] != 0;
+            }
+            if (!any) {
+                freq[0] = 1;
+            }
+            freq[256] = 1;
+            int[] codeSize = new int[257];
+            int[] others = new int[257];
+            for (int i = 0; i < 257; i++) {
+                others[i] = -1;
+            }
+            while (true) {
+                int c1 = -1;
+                long v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (freq[i] != 0 && freq[i] <= v) {
+                        v = freq[i];
+                        c1 = i;
+                    }
+                }
+                int c2 = -1;
+                v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (freq[i] != 0 && freq[i] <= v && i != c1) {
+                        v = freq[i];
+                        c2 = i;
+                    }
+                }
+                if (c2 < 0) {
+                    break;
+                }
+                freq[c1] += freq[c2];
+                freq[c2] = 0;
+                codeSize[c1]++;
+                while (others[c1] >= 0) {
+                    c1 = others[c1];
+                    codeSize[c1]++;
+                }
+                others[c1] = c2;
+                codeSize[c2]++;
+                while (others[c2] >= 0) {
+                    c2 = others[c2];
+                    codeSize[c2]++;
+                }
+            }
+            int[] lengthCount = new int[33];
+            for (int i = 0; i <= 256; i++) {
+                if (codeSize[i] > 0) {
+                    lengthCount[codeSize[i]]++;
+                }
+            }
+            // Limit lengths to 16 bits.
+            for (int i = 32; i > 16; i--) {
+                while (lengthCount[i] > 0) {
+                    int j = i - 2;
+                    while (lengthCount[j] == 0) {
+                        j--;
+                    }
+                    lengthCount[i] -= 2;
+                    lengthCount[i - 1]++;
+                    lengthCount[j + 1] += 2;
+                    lengthCount[j]--;
+                }
+            }
+            // Drop the reserved code, which is the longest.
+            int longest = 16;
+            while (lengthCount[longest] == 0) {
+                longest--;
+            }
+            lengthCount[longest]--;
+
+            HuffmanCode h = new HuffmanCode();
+            int total = 0;
+            for (int i = 1; i <= 16; i++) {
+                h.bits[i] = lengthCount[i];
+                total += lengthCount[i];
+            }
+            h.values = new int[total];
+            int p = 0;
+            for (int len = 1; len <= 32 && p < total; len++) {
+                for (int s = 0; s < 256 && p < total; s++) {
+                    if (codeSize[s] == len) {
+                        h.values[p++] = s;
+                    }
+                }
+            }
+            // Canonical codes in value order.
+            int c = 0;
+            p = 0;
+            for (int len = 1; len <= 16; len++) {
+                for (int i = 0; i < h.bits[len]; i++) {
+                    h.code[h.values[p]] = c;
+                    h.size[h.values[p]] = len;
+                    c++;
+                    p++;
+                }
+                c <<= 1;
+            }
+            return h;
+        }
+    }
+
+    /***********
+     * Bit I/O *
+     ***********/
+
+    private static class BitReader {
+        private final byte[] mData;
+        private int mPos;
+        private final int mEnd;
+        // Next bits left aligned.
+        private long mBuffer;
+        private int mCount;
+
+        BitReader(byte[] data, int start, int end) {
+            mData = data;
+            mPos = start;
+            mEnd = end;
+        }
+
+        private void fill() {
+            while (mCount <= 56) {
+                int b = 0;
+                if (mPos < mEnd) {
+                    b = mData[mPos++] & 0xFF;
+                    if (b == 0xFF) {
+                        // Skip the stuffed zero.
+                        mPos++;
+                    }
+                }
+                mBuffer |= (long) b << (56 - mCount);
+                mCount += 8;
+            }
+        }
+
+        int bits(int n) {
+            if (mCount < n) {
+                fill();
+            }
+            int value = (int) (mBuffer >>> (64 - n));
+            mBuffer <<= n;
+            mCount -= n;
+            return value;
+        }
+
+        int decode(HuffmanTable table) throws IOException {
+            if (mCount < 16) {
+                fill();
+            }
+            int entry = table.lookup[(int) (mBuffer >>> (64 - LOOKUP_BITS))];
+            if (entry != 0) {
+                int len = entry >> 8;
+                mBuffer <<= len;
+                mCount -= len;
+                return entry & 0xFF;
+            }
+            for (int len = LOOKUP_BITS + 1; len <= 16; len++) {
+                int code = (int) (mBuffer >>> (64 - len));
+                if (code <= table.maxCode[len]) {
+                    mBuffer <<= len;
+                    mCount -= len;
+                    return table.values[table.valPtr[len] + code - table.minCode[len]];
+                }
+            }
+            throw new IOException("Bad Huffman code");
+        }
+    }
+
+    private static class BitWriter {
+        private final GrowableBuffer mOut;
+        private long mBuffer;
+        private int mCount;
+
+        BitWriter(int capacity) {
+            mOut = new GrowableBuffer(capacity);
+        }
+
+        void put(int bits, int n) {
+            mBuffer = (mBuffer << n) | bits;
+            mCount += n;
+            while (mCount >= 8) {
+                int b = (int) (mBuffer >>> (mCount - 8)) & 0xFF;
+                mOut.write(b);
+                if (b == 0xFF) {
+                    mOut.write(0);
+                }
+                mCount -= 8;
+            }
+        }
+
+        GrowableBuffer finish() {
+            if (mCount > 0) {
+                // Pad with ones.
+                put((1 << (8 - mCount)) - 1, 8 - mCount);
+            }
+            return mOut;
+        }
+    }
+
+    private static class GrowableBuffer {
+        private byte[] mBytes;
+        private int mLength;
+
+        GrowableBuffer(int capacity) {
+            mBytes = new byte[Math.max(16, capacity)];
+        }
+
+        void write(int b) {
+            if (mLength == mBytes.length) {
+                grow(mLength + 1);
+            }
+            mBytes[mLength++] = (byte) b;
+        }
+
+        void write(byte[] data, int offset, int length) {
+            if (mLength + length > mBytes.length) {
+                grow(mLength + length);
+            }
+            System.arraycopy(data, offset, mBytes, mLength, length);
+            mLength += length;
+        }
+
+        void writeTo(GrowableBuffer out) {
+            out.write(mBytes, 0, mLength);
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(mBytes, 0, mLength);
+        }
+
+        byte[] toByteArray() {
+            byte[] copy = new byte[mLength];
+            System.arraycopy(mBytes, 0, copy, 0, mLength);
+            return copy;
+        }
+
+        private void grow(int needed) {
+            byte[] bigger = new byte[Math.max(needed, mBytes.length * 2)];
+            System.arraycopy(mBytes, 0, bigger, 0, mLength);
+            mBytes = bigger;
+        }
+    }
+}
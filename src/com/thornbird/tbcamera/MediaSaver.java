@@ -19,15 +19,19 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.hardware.camera2.DngCreator;
+import android.media.Image;
 import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 
 /**
@@ -43,6 +47,16 @@ public class MediaSaver {
     // MediaStore is slow/broken
     private static final boolean UDPATE_MEDIA_STORE = true;
 
+    // DngCreator writes in small pieces; batch them up before they hit the channel.
+    private static final int DNG_WRITE_BUFFER_SIZE = 256 * 1024;
+
+    // Where saved captures are recorded for quick lookup, if anywhere.
+    private static volatile CaptureIndex sCaptureIndex;
+
+    public static void setCaptureIndex(CaptureIndex index) {
+        sCaptureIndex = index;
+    }
+
 
     public static int getNextInt(Context context, String id) {
         SharedPreferences prefs = context.getSharedPreferences(MY_PREFS_NAME, Context.MODE_PRIVATE);
@@ -58,41 +72,207 @@ public class MediaSaver {
      * @param jpegData JPEG byte stream.
      */
     public static String saveJpeg(Context context, byte[] jpegData, ContentResolver resolver) {
+        return saveJpeg(context, jpegData, null, resolver);
+    }
+
+    /**
+     * @param context Application context.
+     * @param jpegData JPEG byte stream.
+     * @param exif Metadata spliced into the file while writing, or null to write jpegData as is.
+     */
+    public static String saveJpeg(Context context, byte[] jpegData, ExifWriter exif, ContentResolver resolver) {
+        return saveJpeg(context, jpegData, 0, 0, exif, resolver);
+    }
+
+    /**
+     * @param context Application context.
+     * @param jpegData JPEG byte stream.
+     * @param width Image width for the capture index, 0 if unknown.
+     * @param height Image height for the capture index, 0 if unknown.
+     * @param exif Metadata spliced into the file while writing, or null to write jpegData as is.
+     */
+    public static String saveJpeg(Context context, byte[] jpegData, int width, int height, ExifWriter exif,
+            ContentResolver resolver) {
         String filename = "";
         try {
-            File file;
-            while (true) {
-                int i = getNextInt(context, "counter");
-                filename = String.format("/sdcard/DCIM/Camera/SNAP_%05d.JPG", i);
-                file = new File(filename);
-                if (file.createNewFile()) {
-                    break;
-                }
-            }
+            File file = createNextFile(context, "JPG");
+            filename = file.getPath();
 
             long t0 = SystemClock.uptimeMillis();
-            OutputStream os = new FileOutputStream(file);
-            os.write(jpegData);
-            os.flush();
-            os.close();
+            long dateTaken = System.currentTimeMillis();
+            long thumbnailOffset = -1;
+            int thumbnailLength = 0;
+            if (exif == null) {
+                OutputStream os = new FileOutputStream(file);
+                os.write(jpegData);
+                os.flush();
+                os.close();
+                int[] thumbnail = ExifWriter.findThumbnail(jpegData, jpegData.length);
+                if (thumbnail != null) {
+                    thumbnailOffset = thumbnail[0];
+                    thumbnailLength = thumbnail[1];
+                }
+            } else {
+                if (exif.getDateTaken() > 0) {
+                    dateTaken = exif.getDateTaken();
+                }
+                FileOutputStream fos = new FileOutputStream(file);
+                FileChannel channel = fos.getChannel();
+                ExifWriter.write(channel, exif.buildApp1(), jpegData, jpegData.length);
+                fos.close();
+                int app1Position = ExifWriter.getApp1Position(jpegData, jpegData.length);
+                if (app1Position >= 0 && exif.getThumbnailOffset() >= 0) {
+                    thumbnailOffset = app1Position + exif.getThumbnailOffset();
+                    thumbnailLength = exif.getThumbnailLength();
+                }
+            }
             long t1 = SystemClock.uptimeMillis();
+            indexCapture(file, dateTaken, width, height, thumbnailOffset, thumbnailLength);
 
             // update MediaStore so photos apps can find photos right away.
             if (UDPATE_MEDIA_STORE) {
                 // really slow for some reason: MediaStore.Images.Media.insertImage(resolver, file.getAbsolutePath(), file.getName(), file.getName());
-                insertImage(resolver, file);
+                insertImage(resolver, file, dateTaken, "image/jpeg");
             }
             long t2 = SystemClock.uptimeMillis();
 
             Log.v(TAG, String.format("Wrote JPEG %d bytes as %s in %.3f seconds; mediastore update = %.3f secs",
                     jpegData.length, file, (t1 - t0) * 0.001, (t2 - t1) * 0.001)    );
+            recordWrite("jpeg", file.length(), t1 - t0, t2 - t1);
         } catch (IOException e) {
             Log.e(TAG, "Error creating new file: ", e);
+            MetricsRegistry.get().counter("saver.errors").increment();
+            filename = "";
         }
         return filename;
     }
 
 
+    /**
+     * Write a RAW_SENSOR image as DNG. The image is not closed here.
+     * @param context Application context.
+     * @param dngCreator Built from the characteristics and the image's capture result.
+     * @param image RAW_SENSOR image.
+     * @param dateTaken Wall clock time of the capture.
+     */
+    public static String saveDng(Context context, DngCreator dngCreator, Image image, long dateTaken,
+            ContentResolver resolver) {
+        String filename = "";
+        try {
+            File file = createNextFile(context, "DNG");
+            filename = file.getPath();
+
+            long t0 = SystemClock.uptimeMillis();
+            FileOutputStream fos = new FileOutputStream(file);
+            OutputStream os = new BufferedOutputStream(Channels.newOutputStream(fos.getChannel()),
+                    DNG_WRITE_BUFFER_SIZE);
+            try {
+                dngCreator.writeImage(os, image);
+                os.flush();
+            } finally {
+                os.close();
+            }
+            long t1 = SystemClock.uptimeMillis();
+            indexCapture(file, dateTaken, image.getWidth(), image.getHeight(), -1, 0);
+
+            if (UDPATE_MEDIA_STORE) {
+                insertImage(resolver, file, dateTaken, "image/x-adobe-dng");
+            }
+            long t2 = SystemClock.uptimeMillis();
+
+            Log.v(TAG, String.format("Wrote DNG %d bytes as %s in %.3f seconds; mediastore update = %.3f secs",
+                    file.length(), file, (t1 - t0) * 0.001, (t2 - t1) * 0.001));
+            recordWrite("dng", file.length(), t1 - t0, t2 - t1);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing DNG: ", e);
+            MetricsRegistry.get().counter("saver.errors").increment();
+            filename = "";
+        }
+        return filename;
+    }
+
+    /**
+     * Write a small text file next to the photos, e.g. what a burst kept and culled.
+     * Not added to the MediaStore.
+     */
+    public static String saveSidecar(Context context, String text) {
+        String filename = "";
+        try {
+            File file = createNextFile(context, "TXT");
+            filename = file.getPath();
+            OutputStream os = new FileOutputStream(file);
+            try {
+                os.write(text.getBytes("UTF-8"));
+            } finally {
+                os.close();
+            }
+            Log.v(TAG, "Wrote sidecar " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing sidecar: ", e);
+            filename = "";
+        }
+        return filename;
+    }
+
+    // Claim the next free SNAP_xxxxx name. JPEG and DNG share the counter.
+    private static File createNextFile(Context context, String extension) throws IOException {
+        while (true) {
+            int i = nextSequence(context);
+            File file = new File(String.format("/sdcard/DCIM/Camera/SNAP_%05d.%s", i, extension));
+            if (file.createNewFile()) {
+                return file;
+            }
+        }
+    }
+
+    // The counter, but never behind the index: cleared preferences then don't mean probing
+    // every existing file name one by one.
+    private static int nextSequence(Context context) {
+        int i = getNextInt(context, "counter");
+        CaptureIndex index = sCaptureIndex;
+        if (index != null && i <= index.getLastSequence()) {
+            i = index.getLastSequence() + 1;
+            Log.v(TAG, "Counter behind capture index, continuing at " + i);
+            context.getSharedPreferences(MY_PREFS_NAME, Context.MODE_PRIVATE).edit()
+                    .putInt("counter", i + 1).commit();
+        }
+        return i;
+    }
+
+    private static void recordWrite(String kind, long bytes, long writeMs, long mediaStoreMs) {
+        MetricsRegistry metrics = MetricsRegistry.get();
+        metrics.counter("saver." + kind + ".files").increment();
+        metrics.counter("saver.bytes_written").add(bytes);
+        metrics.histogram("saver." + kind + ".write_ms").record(writeMs);
+        metrics.histogram("saver.mediastore_ms").record(mediaStoreMs);
+        if (writeMs > 0) {
+            // Whole-file rate, open and close included; below 1 ms it can't be told.
+            metrics.histogram("saver.write_mb_per_s").record(bytes / 1e3 / writeMs);
+        }
+    }
+
+    private static void indexCapture(File file, long dateTaken, int width, int height, long thumbnailOffset,
+            int thumbnailLength) {
+        CaptureIndex index = sCaptureIndex;
+        if (index == null) {
+            return;
+        }
+        String name = file.getName();
+        int sequence;
+        try {
+            sequence = Integer.parseInt(name.substring("SNAP_".length(), name.indexOf('.')));
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Not indexing " + file + ", no sequence number.");
+            return;
+        }
+        try {
+            index.append(new CaptureIndex.Entry(sequence, file.getPath(), dateTaken, file.length(),
+                    width, height, thumbnailOffset, thumbnailLength));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not add " + file + " to the capture index: ", e);
+        }
+    }
+
     public static String saveImage(byte[] Data) {
         String filename = "";
         try {
@@ -119,16 +299,20 @@ public class MediaSaver {
 
     // We use this instead of MediaStore.Images.Media.insertImage() because we want to add date metadata
     public static void insertImage(ContentResolver cr, File file) {
+        insertImage(cr, file, System.currentTimeMillis(), "image/jpeg");
+    }
+
+    public static void insertImage(ContentResolver cr, File file, long dateTaken, String mimeType) {
 
         ContentValues values = new ContentValues();
         values.put(MediaStore.Images.Media.TITLE, file.getName());
         values.put(MediaStore.Images.Media.DISPLAY_NAME, file.getName());
         values.put(MediaStore.Images.Media.DESCRIPTION, file.getName());
-        values.put(MediaStore.Images.Media.MIME_TYPE, "image/jpeg");
+        values.put(MediaStore.Images.Media.MIME_TYPE, mimeType);
         values.put(MediaStore.Images.Media.DATA, file.getAbsolutePath());
         // Add the date meta data to ensure the image is added at the front of the gallery
         values.put(MediaStore.Images.Media.DATE_ADDED, System.currentTimeMillis());
-        values.put(MediaStore.Images.Media.DATE_TAKEN, System.currentTimeMillis());
+        values.put(MediaStore.Images.Media.DATE_TAKEN, dateTaken);
 
         try {
             cr.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
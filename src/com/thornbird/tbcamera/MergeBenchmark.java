@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Host benchmark for MultiFrameMerger: merges synthetic noisy, shifted frames and prints the
+ * time, throughput and how much noise the merge removed. Plain Java, run it off device:
+ *
+ *   javac -d /tmp/merge src/com/thornbird/tbcamera/{MultiFrameMerger,YuvFrame,MergeBenchmark}.java
+ *   java -cp /tmp/merge com.thornbird.tbcamera.MergeBenchmark [width height frames iterations]
+ */
+public class MergeBenchmark {
+    // Random shift of each alternate frame, in pixels, up to this in either direction.
+    private static final int MAX_SHIFT = 7;
+    private static final double NOISE_SIGMA = 8;
+    // Left out of the noise measurement, covers the shifts.
+    private static final int BORDER = 40;
+
+    public static void main(String[] args) {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 3000;
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        // Smooth scene with some texture, bigger than the frames so shifted crops fit.
+        int pad = MAX_SHIFT + 1;
+        int sceneWidth = width + 2 * pad;
+        int sceneHeight = height + 2 * pad;
+        float[] scene = new float[sceneWidth * sceneHeight];
+        for (int y = 0; y < sceneHeight; y++) {
+            for (int x = 0; x < sceneWidth; x++) {
+                scene[y * sceneWidth + x] = (float) (128 + 60 * Math.sin(x * 0.05) * Math.cos(y * 0.07)
+                        + 30 * Math.sin((x + y) * 0.21));
+            }
+        }
+
+        Random random = new Random(1);
+        YuvFrame[] frames = new YuvFrame[count];
+        for (int i = 0; i < count; i++) {
+            int dx = i == 0 ? 0 : random.nextInt(2 * MAX_SHIFT + 1) - MAX_SHIFT;
+            int dy = i == 0 ? 0 : random.nextInt(2 * MAX_SHIFT + 1) - MAX_SHIFT;
+            YuvFrame frame = new YuvFrame(width, height);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    double v = scene[(y + pad + dy) * sceneWidth + x + pad + dx] + random.nextGaussian() * NOISE_SIGMA;
+                    frame.y[y * width + x] = (byte) Math.max(0, Math.min(255, (int) Math.round(v)));
+                }
+            }
+            Arrays.fill(frame.u, (byte) 128);
+            Arrays.fill(frame.v, (byte) 128);
+            frames[i] = frame;
+        }
+
+        MultiFrameMerger merger = new MultiFrameMerger();
+        YuvFrame out = new YuvFrame(width, height);
+        for (int i = 0; i < iterations; i++) {
+            merger.merge(frames, out);
+            System.out.printf("merge %d frames %dx%d: %.1f ms, %.1f MP/s%n", count, width, height,
+                    merger.getLastMergeNanos() / 1e6, merger.getLastMegapixelsPerSecond());
+        }
+
+        double refError = 0;
+        double mergedError = 0;
+        long pixels = 0;
+        for (int y = BORDER; y < height - BORDER; y++) {
+            for (int x = BORDER; x < width - BORDER; x++) {
+                double clean = scene[(y + pad) * sceneWidth + x + pad];
+                double ref = (frames[0].y[y * width + x] & 0xFF) - clean;
+                double merged = (out.y[y * width + x] & 0xFF) - clean;
+                refError += ref * ref;
+                mergedError += merged * merged;
+                pixels++;
+            }
+        }
+        System.out.printf("rms noise: reference %.2f, merged %.2f%n",
+                Math.sqrt(refError / pixels), Math.sqrt(mergedError / pixels));
+    }
+}
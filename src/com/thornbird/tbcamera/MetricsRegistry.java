@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide performance metrics: counters, gauges and histograms by name, so numbers
+ * that would otherwise only show up in the log can be read from a running device, via
+ * dumpsys (TBCameraActivity.dump()) or snapshot().
+ *
+ * Names are dotted, e.g. "camera.open_ms". Gauges either hold the last value set, or are
+ * read on demand from a Source that the owner registers and removes again.
+ *
+ * Thread safe; recording is cheap enough for per-frame use.
+ */
+public class MetricsRegistry {
+    private static MetricsRegistry sInstance;
+
+    private final Map<String, Counter> mCounters = new ConcurrentHashMap<String, Counter>();
+    private final Map<String, Gauge> mGauges = new ConcurrentHashMap<String, Gauge>();
+    private final Map<String, Source> mSources = new ConcurrentHashMap<String, Source>();
+    private final Map<String, Histogram> mHistograms = new ConcurrentHashMap<String, Histogram>();
+
+    /**
+     * Value read when a snapshot is taken.
+     */
+    public interface Source {
+        double getValue();
+    }
+
+    public static class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    public static class Gauge {
+        private volatile double mValue;
+
+        public void set(double value) {
+            mValue = value;
+        }
+
+        public double get() {
+            return mValue;
+        }
+    }
+
+    /**
+     * Distribution of values in buckets four per doubling (about 19% wide), from 1/1024 up.
+     * Percentiles are upper bucket edges, capped at the largest value seen.
+     */
+    public static class Histogram {
+        private static final int BUCKETS_PER_DOUBLING = 4;
+        private static final int MIN_EXPONENT = -10;
+        private static final int NUM_BUCKETS = 40 * BUCKETS_PER_DOUBLING;
+
+        private final long[] mBuckets = new long[NUM_BUCKETS];
+        private long mCount;
+        private double mSum;
+        private double mMin = Double.MAX_VALUE;
+        private double mMax;
+
+        public synchronized void record(double value) {
+            int bucket = 0;
+            if (value > 0) {
+                double position = (Math.log(value) / Math.log(2) - MIN_EXPONENT) * BUCKETS_PER_DOUBLING;
+                bucket = (int) Math.max(0, Math.min(NUM_BUCKETS - 1, Math.ceil(position)));
+            }
+            mBuckets[bucket]++;
+            mCount++;
+            mSum += value;
+            mMin = Math.min(mMin, value);
+            mMax = Math.max(mMax, value);
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized double getMean() {
+            return mCount > 0 ? mSum / mCount : 0;
+        }
+
+        public synchronized double getMin() {
+            return mCount > 0 ? mMin : 0;
+        }
+
+        public synchronized double getMax() {
+            return mMax;
+        }
+
+        /**
+         * @param percentile 0 to 100.
+         */
+        public synchronized double getPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += mBuckets[i];
+                if (seen >= target) {
+                    double edge = Math.pow(2, MIN_EXPONENT + (double) i / BUCKETS_PER_DOUBLING);
+                    return Math.max(getMin(), Math.min(mMax, edge));
+                }
+            }
+            return mMax;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("n=%d mean=%.2f min=%.2f p50=%.2f p90=%.2f p99=%.2f max=%.2f",
+                    mCount, getMean(), getMin(), getPercentile(50), getPercentile(90), getPercentile(99), mMax);
+        }
+    }
+
+    public static synchronized MetricsRegistry get() {
+        if (sInstance == null) {
+            sInstance = new MetricsRegistry();
+        }
+        return sInstance;
+    }
+
+    public Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            synchronized (mCounters) {
+                counter = mCounters.get(name);
+                if (counter == null) {
+                    counter = new Counter();
+                    mCounters.put(name, counter);
+                }
+            }
+        }
+        return counter;
+    }
+
+    public Gauge gauge(String name) {
+        Gauge gauge = mGauges.get(name);
+        if (gauge == null) {
+            synchronized (mGauges) {
+                gauge = mGauges.get(name);
+                if (gauge == null) {
+                    gauge = new Gauge();
+                    mGauges.put(name, gauge);
+                }
+            }
+        }
+        return gauge;
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            synchronized (mHistograms) {
+                histogram = mHistograms.get(name);
+                if (histogram == null) {
+                    histogram = new Histogram();
+                    mHistograms.put(name, histogram);
+                }
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * A gauge read from its owner. Replaces any source of the same name.
+     */
+    public void registerSource(String name, Source source) {
+        mSources.put(name, source);
+    }
+
+    public void unregisterSource(String name) {
+        mSources.remove(name);
+    }
+
+    /**
+     * Every value as a flat name -> number map, sorted by name. Histograms expand to
+     * name.count, .mean, .min, .p50, .p90, .p99 and .max.
+     */
+    public Map<String, Double> snapshot() {
+        Map<String, Double> values = new TreeMap<String, Double>();
+        for (Map.Entry<String, Counter> e : mCounters.entrySet()) {
+            values.put(e.getKey(), (double) e.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> e : mGauges.entrySet()) {
+            values.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, Source> e : mSources.entrySet()) {
+            values.put(e.getKey(), e.getValue().getValue());
+        }
+        for (Map.Entry<String, Histogram> e : mHistograms.entrySet()) {
+            Histogram h = e.getValue();
+            String name = e.getKey();
+            synchronized (h) {
+                values.put(name + ".count", (double) h.getCount());
+                values.put(name + ".mean", h.getMean());
+                values.put(name + ".min", h.getMin());
+                values.put(name + ".p50", h.getPercentile(50));
+                values.put(name + ".p90", h.getPercentile(90));
+                values.put(name + ".p99", h.getPercentile(99));
+                values.put(name + ".max", h.getMax());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * snapshot() as one JSON object.
+     */
+    public String snapshotJson() {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, Double> e : snapshot().entrySet()) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            double v = e.getValue();
+            sb.append('"').append(e.getKey()).append("\":");
+            if (Double.isNaN(v) || Double.isInfinite(v)) {
+                sb.append("null");
+            } else if (v == Math.rint(v) && Math.abs(v) < 1e15) {
+                sb.append((long) v);
+            } else {
+                sb.append(v);
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Human readable, for dumpsys.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        Map<String, String> lines = new TreeMap<String, String>();
+        for (Map.Entry<String, Counter> e : mCounters.entrySet()) {
+            lines.put(e.getKey(), Long.toString(e.getValue().get()));
+        }
+        for (Map.Entry<String, Gauge> e : mGauges.entrySet()) {
+            lines.put(e.getKey(), String.format("%.2f", e.getValue().get()));
+        }
+        for (Map.Entry<String, Source> e : mSources.entrySet()) {
+            lines.put(e.getKey(), String.format("%.2f", e.getValue().getValue()));
+        }
+        for (Map.Entry<String, Histogram> e : mHistograms.entrySet()) {
+            lines.put(e.getKey(), e.getValue().toString());
+        }
+        for (Map.Entry<String, String> e : lines.entrySet()) {
+            writer.println(prefix + e.getKey() + ": " + e.getValue());
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import android.content.Context;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs several cameras at once, e.g. front and back, on one CameraPipeline: they share the
+ * worker threads, the capture budget and the saver, and each keeps its own StreamMetrics.
+ *
+ * Each camera still needs its own preview Surface, sized to getPreviewSize(index).
+ */
+public class MultiCameraController {
+    private static final String TAG = "TBCamera_MULTI";
+
+    private final Context mContext;
+    private final CameraManager mCameraManager;
+    private final CameraPipeline mPipeline = new CameraPipeline();
+    private final List<Api2Camera> mCameras = new ArrayList<Api2Camera>();
+
+    public MultiCameraController(Context context) {
+        mContext = context;
+        mCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+    }
+
+    public List<CameraEnumerator.CameraEntry> enumerate() {
+        return CameraEnumerator.enumerate(mCameraManager);
+    }
+
+    /**
+     * Two cameras to run together. A pair the system reports as concurrent (API 30+) wins,
+     * preferring one that faces each way; before that, the first back and first front camera,
+     * which may or may not open together.
+     * @return Two camera ids, or null if there is no candidate pair.
+     */
+    public String[] choosePair() {
+        List<CameraEnumerator.CameraEntry> cameras = enumerate();
+        String[] best = null;
+        for (Set<String> set : CameraEnumerator.getConcurrentCameraIds(mCameraManager)) {
+            List<String> ids = new ArrayList<String>(set);
+            for (int i = 0; i < ids.size(); i++) {
+                for (int j = i + 1; j < ids.size(); j++) {
+                    String[] pair = {ids.get(i), ids.get(j)};
+                    if (best == null) {
+                        best = pair;
+                    }
+                    if (facing(cameras, pair[0]) != facing(cameras, pair[1])) {
+                        return pair;
+                    }
+                }
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        String back = null;
+        String front = null;
+        for (CameraEnumerator.CameraEntry camera : cameras) {
+            if (camera.hidden) {
+                continue;
+            }
+            if (back == null && camera.facing == CameraMetadata.LENS_FACING_BACK) {
+                back = camera.id;
+            } else if (front == null && camera.facing == CameraMetadata.LENS_FACING_FRONT) {
+                front = camera.id;
+            }
+        }
+        return back != null && front != null ? new String[] {back, front} : null;
+    }
+
+    private static int facing(List<CameraEnumerator.CameraEntry> cameras, String id) {
+        for (CameraEnumerator.CameraEntry camera : cameras) {
+            if (camera.id.equals(id)) {
+                return camera.facing;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Open the given cameras. Call startPreview() for each to see something.
+     */
+    public void open(String[] cameraIds, MyCameraCallback callback) {
+        close();
+        for (String id : cameraIds) {
+            Api2Camera camera = new Api2Camera(mContext, id, mPipeline);
+            camera.setCallback(callback);
+            camera.openCamera();
+            mCameras.add(camera);
+        }
+        Log.v(TAG, "Opened " + mCameras.size() + " cameras on a shared pipeline.");
+    }
+
+    public int getCameraCount() {
+        return mCameras.size();
+    }
+
+    public Api2Camera getCamera(int index) {
+        return mCameras.get(index);
+    }
+
+    public Size getPreviewSize(int index) {
+        return mCameras.get(index).getPreviewSize();
+    }
+
+    public void startPreview(int index, Surface surface) {
+        mCameras.get(index).startPreview(surface);
+    }
+
+    public List<StreamMetrics> getStreamMetrics() {
+        List<StreamMetrics> metrics = new ArrayList<StreamMetrics>(mCameras.size());
+        for (Api2Camera camera : mCameras) {
+            metrics.add(camera.getStreamMetrics());
+        }
+        return metrics;
+    }
+
+    /**
+     * Close the cameras. The pipeline stays up for the next open(); release() stops it.
+     */
+    public void close() {
+        for (Api2Camera camera : mCameras) {
+            camera.closeCamera();
+        }
+        mCameras.clear();
+    }
+
+    public void release() {
+        close();
+        mPipeline.release();
+    }
+}
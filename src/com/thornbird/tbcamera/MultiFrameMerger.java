@@ -0,0 +1,571 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Merges a burst of same-sized YUV frames into one frame.
+ *
+ * Frame 0 is the reference. Every other frame is aligned to it per 16x16 tile, coarse to
+ * fine on a luma pyramid, then merged per pixel:
+ *   MODE_DENOISE: alternate pixels are weighted by how close they are to the reference,
+ *       so misaligned or moving content falls back to the reference frame.
+ *   MODE_EXPOSURE_FUSION: pixels are weighted by how well exposed they are. Alignment
+ *       runs on gain-normalized luma so differently exposed frames can still be matched.
+ *
+ * Tile rows are processed in parallel on a ForkJoinPool. Pyramids and per-task scratch
+ * buffers are kept between calls, so repeated merges of the same size don't allocate.
+ * Plain Java so it can be run and benchmarked off device.
+ *
+ * Not thread safe: one merge at a time per instance.
+ */
+public class MultiFrameMerger {
+    public static final int MODE_DENOISE = 0;
+    public static final int MODE_EXPOSURE_FUSION = 1;
+
+    // Merge and alignment tile size, in pixels of the level being worked on.
+    private static final int TILE_SIZE = 16;
+    private static final int MAX_PYRAMID_LEVELS = 4;
+    private static final int COARSE_SEARCH_RADIUS = 4;
+    private static final int FINE_SEARCH_RADIUS = 1;
+    // Tile rows per fork-join leaf task.
+    private static final int ROWS_PER_TASK = 2;
+    private static final int DEFAULT_NOISE_THRESHOLD = 12;
+    private static final float FUSION_SIGMA = 0.2f * 255;
+    // Keeps weights non-zero so fully clipped pixels still average to something.
+    private static final float MIN_FUSION_WEIGHT = 1e-3f;
+
+    private final ForkJoinPool mPool;
+    private final ConcurrentLinkedQueue<float[]> mScratchPool = new ConcurrentLinkedQueue<float[]>();
+    private final float[] mNoiseWeightLut = new float[256];
+    private final float[] mExposureWeightLut = new float[256];
+    private int mMode = MODE_DENOISE;
+
+    // Owned pyramid buffers, reused while frame count and size stay the same. [frame][level]
+    private byte[][][] mPyramidBuffers;
+    // Levels used by the current merge; level 0 may point straight at the input luma. [frame][level]
+    private byte[][][] mLevels;
+    private int mNumLevels;
+    private final int[] mLevelWidth = new int[MAX_PYRAMID_LEVELS];
+    private final int[] mLevelHeight = new int[MAX_PYRAMID_LEVELS];
+    private final int[] mTilesX = new int[MAX_PYRAMID_LEVELS];
+    private final int[] mTilesY = new int[MAX_PYRAMID_LEVELS];
+    // Per level tile offsets: [((ty * tilesX + tx) * frames + frame) * 2 + {0: dx, 1: dy}]
+    private final int[][] mOffsets = new int[MAX_PYRAMID_LEVELS][];
+
+    private YuvFrame[] mFrames;
+    private YuvFrame mOut;
+
+    private long mLastMergeNanos;
+    private double mLastMegapixelsPerSecond;
+
+    /**
+     * Constructor, with a pool using all cores.
+     */
+    public MultiFrameMerger() {
+        this(new ForkJoinPool(Runtime.getRuntime().availableProcessors()));
+    }
+
+    public MultiFrameMerger(ForkJoinPool pool) {
+        mPool = pool;
+        setNoiseThreshold(DEFAULT_NOISE_THRESHOLD);
+        for (int v = 0; v < 256; v++) {
+            float d = v - 127.5f;
+            mExposureWeightLut[v] = (float) Math.exp(-d * d / (2 * FUSION_SIGMA * FUSION_SIGMA))
+                    + MIN_FUSION_WEIGHT;
+        }
+    }
+
+    public void setMode(int mode) {
+        mMode = mode;
+    }
+
+    /**
+     * Luma difference at which an alternate pixel counts half as much as the reference.
+     * Higher means stronger denoising and more ghosting.
+     */
+    public void setNoiseThreshold(int threshold) {
+        float t2 = (float) threshold * threshold;
+        for (int d = 0; d < 256; d++) {
+            mNoiseWeightLut[d] = t2 / (t2 + d * d);
+        }
+    }
+
+    /**
+     * Wall time of the last merge, in nanoseconds.
+     */
+    public long getLastMergeNanos() {
+        return mLastMergeNanos;
+    }
+
+    /**
+     * Input megapixels (all frames) merged per second in the last merge.
+     */
+    public double getLastMegapixelsPerSecond() {
+        return mLastMegapixelsPerSecond;
+    }
+
+    /**
+     * Merge frames into out. frames[0] is the reference.
+     * @param out Destination, same size as the inputs. Must not be one of the inputs.
+     * @return out
+     */
+    public YuvFrame merge(YuvFrame[] frames, YuvFrame out) {
+        long t0 = System.nanoTime();
+        if (frames.length == 0) {
+            throw new IllegalArgumentException("No frames to merge");
+        }
+        for (YuvFrame f : frames) {
+            if (!f.isSameSize(out)) {
+                throw new IllegalArgumentException("Frame size mismatch: " + f.width + "x" + f.height
+                        + " vs " + out.width + "x" + out.height);
+            }
+            if (f == out) {
+                throw new IllegalArgumentException("Output aliases an input frame");
+            }
+        }
+        mFrames = frames;
+        mOut = out;
+        try {
+            buildPyramids();
+            for (int level = mNumLevels - 1; level >= 0; level--) {
+                mPool.invoke(new AlignTask(level, 0, mTilesY[level]));
+            }
+            mPool.invoke(new MergeTask(0, mTilesY[0]));
+        } finally {
+            mFrames = null;
+            mOut = null;
+            mLevels = null;
+        }
+        mLastMergeNanos = System.nanoTime() - t0;
+        mLastMegapixelsPerSecond = (double) out.width * out.height * frames.length
+                / 1e6 / (mLastMergeNanos / 1e9);
+        return out;
+    }
+
+    /*************
+     * Pyramids. *
+     *************/
+
+    private void buildPyramids() {
+        int n = mFrames.length;
+        int w = mOut.width;
+        int h = mOut.height;
+        mNumLevels = 1;
+        mLevelWidth[0] = w;
+        mLevelHeight[0] = h;
+        while (mNumLevels < MAX_PYRAMID_LEVELS
+                && mLevelWidth[mNumLevels - 1] / 2 >= TILE_SIZE
+                && mLevelHeight[mNumLevels - 1] / 2 >= TILE_SIZE) {
+            mLevelWidth[mNumLevels] = mLevelWidth[mNumLevels - 1] / 2;
+            mLevelHeight[mNumLevels] = mLevelHeight[mNumLevels - 1] / 2;
+            mNumLevels++;
+        }
+        for (int level = 0; level < mNumLevels; level++) {
+            mTilesX[level] = (mLevelWidth[level] + TILE_SIZE - 1) / TILE_SIZE;
+            mTilesY[level] = (mLevelHeight[level] + TILE_SIZE - 1) / TILE_SIZE;
+            int size = mTilesX[level] * mTilesY[level] * n * 2;
+            if (mOffsets[level] == null || mOffsets[level].length < size) {
+                mOffsets[level] = new int[size];
+            }
+        }
+
+        // Buffers of the wrong size are replaced in levelBuffer().
+        if (mPyramidBuffers == null || mPyramidBuffers.length != n) {
+            mPyramidBuffers = new byte[n][MAX_PYRAMID_LEVELS][];
+        }
+        mLevels = new byte[n][mNumLevels][];
+
+        float[] gains = new float[n];
+        gains[0] = 1f;
+        if (mMode == MODE_EXPOSURE_FUSION) {
+            float refMean = meanLuma(mFrames[0]);
+            for (int f = 1; f < n; f++) {
+                float mean = meanLuma(mFrames[f]);
+                gains[f] = mean > 0 ? Math.max(0.25f, Math.min(4f, refMean / mean)) : 1f;
+            }
+        } else {
+            for (int f = 1; f < n; f++) {
+                gains[f] = 1f;
+            }
+        }
+
+        final List<PyramidTask> tasks = new ArrayList<PyramidTask>(n);
+        for (int f = 0; f < n; f++) {
+            tasks.add(new PyramidTask(f, gains[f]));
+        }
+        mPool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    private static float meanLuma(YuvFrame frame) {
+        // Sparse sample, this only steers alignment.
+        long sum = 0;
+        int count = 0;
+        for (int i = 0; i < frame.width * frame.height; i += 61) {
+            sum += frame.y[i] & 0xFF;
+            count++;
+        }
+        return (float) sum / count;
+    }
+
+    private byte[] levelBuffer(int frame, int level) {
+        int size = mLevelWidth[level] * mLevelHeight[level];
+        byte[] buf = mPyramidBuffers[frame][level];
+        if (buf == null || buf.length != size) {
+            buf = new byte[size];
+            mPyramidBuffers[frame][level] = buf;
+        }
+        return buf;
+    }
+
+    private class PyramidTask extends RecursiveAction {
+        private final int mFrame;
+        private final float mGain;
+
+        PyramidTask(int frame, float gain) {
+            mFrame = frame;
+            mGain = gain;
+        }
+
+        @Override
+        protected void compute() {
+            byte[] src = mFrames[mFrame].y;
+            if (Math.abs(mGain - 1f) > 0.02f) {
+                byte[] lut = new byte[256];
+                for (int v = 0; v < 256; v++) {
+                    lut[v] = (byte) Math.min(255, Math.round(v * mGain));
+                }
+                byte[] dst = levelBuffer(mFrame, 0);
+                for (int i = 0; i < dst.length; i++) {
+                    dst[i] = lut[src[i] & 0xFF];
+                }
+                src = dst;
+            }
+            mLevels[mFrame][0] = src;
+            for (int level = 1; level < mNumLevels; level++) {
+                byte[] dst = levelBuffer(mFrame, level);
+                downsample(mLevels[mFrame][level - 1], mLevelWidth[level - 1], dst,
+                        mLevelWidth[level], mLevelHeight[level]);
+                mLevels[mFrame][level] = dst;
+            }
+        }
+    }
+
+    // 2x2 box filter.
+    private static void downsample(byte[] src, int srcWidth, byte[] dst, int dstWidth, int dstHeight) {
+        for (int y = 0; y < dstHeight; y++) {
+            int s0 = 2 * y * srcWidth;
+            int s1 = s0 + srcWidth;
+            int d = y * dstWidth;
+            for (int x = 0; x < dstWidth; x++) {
+                int sx = 2 * x;
+                int sum = (src[s0 + sx] & 0xFF) + (src[s0 + sx + 1] & 0xFF)
+                        + (src[s1 + sx] & 0xFF) + (src[s1 + sx + 1] & 0xFF);
+                dst[d + x] = (byte) ((sum + 2) >> 2);
+            }
+        }
+    }
+
+    /****************************
+     * Parallel tile row tasks. *
+     ****************************/
+
+    private abstract class TileRowTask extends RecursiveAction {
+        final int mFrom;
+        final int mTo;
+
+        TileRowTask(int from, int to) {
+            mFrom = from;
+            mTo = to;
+        }
+
+        abstract TileRowTask split(int from, int to);
+
+        abstract int scratchSize();
+
+        abstract void processRows(int from, int to, float[] scratch);
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= ROWS_PER_TASK) {
+                int size = scratchSize();
+                if (size == 0) {
+                    // Empty arrays in the pool would only be thrown away by the tasks that need one.
+                    processRows(mFrom, mTo, null);
+                    return;
+                }
+                float[] scratch = acquireScratch(size);
+                try {
+                    processRows(mFrom, mTo, scratch);
+                } finally {
+                    mScratchPool.offer(scratch);
+                }
+                return;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            invokeAll(split(mFrom, mid), split(mid, mTo));
+        }
+    }
+
+    private float[] acquireScratch(int size) {
+        float[] scratch = mScratchPool.poll();
+        if (scratch == null || scratch.length < size) {
+            scratch = new float[size];
+        }
+        return scratch;
+    }
+
+    /**************
+     * Alignment. *
+     **************/
+
+    private class AlignTask extends TileRowTask {
+        private final int mLevel;
+
+        AlignTask(int level, int from, int to) {
+            super(from, to);
+            mLevel = level;
+        }
+
+        @Override
+        TileRowTask split(int from, int to) {
+            return new AlignTask(mLevel, from, to);
+        }
+
+        @Override
+        int scratchSize() {
+            return 0;
+        }
+
+        @Override
+        void processRows(int from, int to, float[] scratch) {
+            int n = mFrames.length;
+            int lw = mLevelWidth[mLevel];
+            int lh = mLevelHeight[mLevel];
+            int tilesX = mTilesX[mLevel];
+            int[] offsets = mOffsets[mLevel];
+            boolean coarsest = mLevel == mNumLevels - 1;
+            int radius = coarsest ? COARSE_SEARCH_RADIUS : FINE_SEARCH_RADIUS;
+            byte[] ref = mLevels[0][mLevel];
+            for (int ty = from; ty < to; ty++) {
+                int y0 = ty * TILE_SIZE;
+                int y1 = Math.min(lh, y0 + TILE_SIZE);
+                for (int tx = 0; tx < tilesX; tx++) {
+                    int x0 = tx * TILE_SIZE;
+                    int x1 = Math.min(lw, x0 + TILE_SIZE);
+                    int base = (ty * tilesX + tx) * n * 2;
+                    offsets[base] = 0;
+                    offsets[base + 1] = 0;
+                    for (int f = 1; f < n; f++) {
+                        int dx = 0;
+                        int dy = 0;
+                        if (!coarsest) {
+                            // Start from the coarser level's tile covering this one.
+                            int[] coarse = mOffsets[mLevel + 1];
+                            int ctx = Math.min(tx >> 1, mTilesX[mLevel + 1] - 1);
+                            int cty = Math.min(ty >> 1, mTilesY[mLevel + 1] - 1);
+                            int cbase = ((cty * mTilesX[mLevel + 1] + ctx) * n + f) * 2;
+                            dx = coarse[cbase] * 2;
+                            dy = coarse[cbase + 1] * 2;
+                        }
+                        byte[] alt = mLevels[f][mLevel];
+                        int bestCost = Integer.MAX_VALUE;
+                        int bestDx = dx;
+                        int bestDy = dy;
+                        for (int sy = -radius; sy <= radius; sy++) {
+                            for (int sx = -radius; sx <= radius; sx++) {
+                                int cost = sad(ref, alt, lw, lh, x0, x1, y0, y1,
+                                        dx + sx, dy + sy, bestCost);
+                                if (cost < bestCost) {
+                                    bestCost = cost;
+                                    bestDx = dx + sx;
+                                    bestDy = dy + sy;
+                                }
+                            }
+                        }
+                        offsets[base + f * 2] = bestDx;
+                        offsets[base + f * 2 + 1] = bestDy;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sum of absolute differences between ref[x0..x1, y0..y1] and alt shifted by (ox, oy).
+     * Gives up once the sum reaches limit.
+     */
+    private static int sad(byte[] ref, byte[] alt, int w, int h, int x0, int x1, int y0, int y1,
+            int ox, int oy, int limit) {
+        int sum = 0;
+        boolean inside = x0 + ox >= 0 && x1 + ox <= w && y0 + oy >= 0 && y1 + oy <= h;
+        for (int y = y0; y < y1; y++) {
+            int r = y * w;
+            if (inside) {
+                int a = (y + oy) * w + ox;
+                for (int x = x0; x < x1; x++) {
+                    sum += Math.abs((ref[r + x] & 0xFF) - (alt[a + x] & 0xFF));
+                }
+            } else {
+                int a = clamp(y + oy, h) * w;
+                for (int x = x0; x < x1; x++) {
+                    sum += Math.abs((ref[r + x] & 0xFF) - (alt[a + clamp(x + ox, w)] & 0xFF));
+                }
+            }
+            if (sum >= limit) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    private static int clamp(int v, int size) {
+        return v < 0 ? 0 : (v >= size ? size - 1 : v);
+    }
+
+    /**********
+     * Merge. *
+     **********/
+
+    private class MergeTask extends TileRowTask {
+        MergeTask(int from, int to) {
+            super(from, to);
+        }
+
+        @Override
+        TileRowTask split(int from, int to) {
+            return new MergeTask(from, to);
+        }
+
+        @Override
+        int scratchSize() {
+            // Luma accumulator, luma weights, per-frame mean weight.
+            return 2 * TILE_SIZE * TILE_SIZE + mFrames.length;
+        }
+
+        @Override
+        void processRows(int from, int to, float[] scratch) {
+            int tilesX = mTilesX[0];
+            for (int ty = from; ty < to; ty++) {
+                for (int tx = 0; tx < tilesX; tx++) {
+                    mergeTile(tx, ty, scratch);
+                }
+            }
+        }
+    }
+
+    private void mergeTile(int tx, int ty, float[] scratch) {
+        final int n = mFrames.length;
+        final int w = mOut.width;
+        final int h = mOut.height;
+        final boolean fusion = mMode == MODE_EXPOSURE_FUSION;
+        final int x0 = tx * TILE_SIZE;
+        final int y0 = ty * TILE_SIZE;
+        final int x1 = Math.min(w, x0 + TILE_SIZE);
+        final int y1 = Math.min(h, y0 + TILE_SIZE);
+        final int tw = x1 - x0;
+        final int count = tw * (y1 - y0);
+        final int weightBase = TILE_SIZE * TILE_SIZE;
+        final int frameWeightBase = 2 * TILE_SIZE * TILE_SIZE;
+        final int[] offsets = mOffsets[0];
+        final int tileBase = (ty * mTilesX[0] + tx) * n * 2;
+        final byte[] ref = mFrames[0].y;
+
+        // Reference frame seeds the accumulators.
+        float refWeightSum = 0;
+        for (int y = y0; y < y1; y++) {
+            int i = (y - y0) * tw;
+            int r = y * w;
+            for (int x = x0; x < x1; x++, i++) {
+                int v = ref[r + x] & 0xFF;
+                float wgt = fusion ? mExposureWeightLut[v] : 1f;
+                scratch[i] = v * wgt;
+                scratch[weightBase + i] = wgt;
+                refWeightSum += wgt;
+            }
+        }
+        scratch[frameWeightBase] = refWeightSum / count;
+
+        for (int f = 1; f < n; f++) {
+            final byte[] alt = mFrames[f].y;
+            final int ox = offsets[tileBase + f * 2];
+            final int oy = offsets[tileBase + f * 2 + 1];
+            float frameWeightSum = 0;
+            for (int y = y0; y < y1; y++) {
+                int i = (y - y0) * tw;
+                int r = y * w;
+                int a = clamp(y + oy, h) * w;
+                for (int x = x0; x < x1; x++, i++) {
+                    int v = alt[a + clamp(x + ox, w)] & 0xFF;
+                    float wgt = fusion ? mExposureWeightLut[v]
+                            : mNoiseWeightLut[Math.abs(v - (ref[r + x] & 0xFF))];
+                    scratch[i] += v * wgt;
+                    scratch[weightBase + i] += wgt;
+                    frameWeightSum += wgt;
+                }
+            }
+            scratch[frameWeightBase + f] = frameWeightSum / count;
+        }
+
+        final byte[] outY = mOut.y;
+        for (int y = y0; y < y1; y++) {
+            int i = (y - y0) * tw;
+            int o = y * w;
+            for (int x = x0; x < x1; x++, i++) {
+                outY[o + x] = (byte) Math.min(255, (int) (scratch[i] / scratch[weightBase + i] + 0.5f));
+            }
+        }
+
+        // Chroma: per-frame weight is that frame's mean luma weight over the tile.
+        mergeChromaTile(x0 / 2, y0 / 2, x1 / 2, y1 / 2, tileBase, scratch, frameWeightBase, true);
+        mergeChromaTile(x0 / 2, y0 / 2, x1 / 2, y1 / 2, tileBase, scratch, frameWeightBase, false);
+    }
+
+    private void mergeChromaTile(int x0, int y0, int x1, int y1, int tileBase, float[] scratch,
+            int frameWeightBase, boolean isU) {
+        final int n = mFrames.length;
+        final int cw = mOut.getChromaWidth();
+        final int ch = mOut.getChromaHeight();
+        final int[] offsets = mOffsets[0];
+        float weightSum = 0;
+        for (int f = 0; f < n; f++) {
+            weightSum += scratch[frameWeightBase + f];
+        }
+        final byte[] out = isU ? mOut.u : mOut.v;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                float acc = 0;
+                for (int f = 0; f < n; f++) {
+                    byte[] plane = isU ? mFrames[f].u : mFrames[f].v;
+                    int sx = clamp(x + (offsets[tileBase + f * 2] >> 1), cw);
+                    int sy = clamp(y + (offsets[tileBase + f * 2 + 1] >> 1), ch);
+                    acc += (plane[sy * cw + sx] & 0xFF) * scratch[frameWeightBase + f];
+                }
+                out[y * cw + x] = (byte) Math.min(255, (int) (acc / weightSum + 0.5f));
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+/**
+ * Callbacks from a CameraInterface back to the UI.
+ * These are called on camera threads, not the main thread.
+ */
+public interface MyCameraCallback {
+    /**
+     * A JPEG came back from the camera. It is saved by the camera, this is just a notification.
+     */
+    void jpegAvailable(byte[] jpegData, int x, int y);
+
+    /**
+     * First preview frame arrived.
+     */
+    void receivedFirstFrame();
+
+    /**
+     * Captures started (throttled = true) or stopped being held back because too much
+     * image data is waiting to be saved.
+     */
+    void backpressureChanged(boolean throttled, long bytesInFlight);
+
+    /**
+     * A still capture was lost somewhere between the HAL and disk.
+     */
+    void frameDropped(int totalDropped);
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Puts AF and AE precapture triggers in front of a still only when 3A needs them.
+ *
+ * Preview results keep the last CONTROL_AE_STATE / CONTROL_AF_STATE. If those are converged
+ * when a shot is requested, it fires right away. Otherwise only the missing triggers are sent:
+ * AF while a continuous scan is running, or in AUTO/MACRO without a focus lock; precapture when
+ * AE is inactive or wants flash. AE that is still searching is waited out without a trigger.
+ * The shot fires on the first result that shows convergence, or after CONVERGE_TIMEOUT_MS.
+ *
+ * Per shot, in MetricsRegistry:
+ *   shutter.converge_ms  request to converged (0 when 3A was ready)
+ *   shutter.exposure_ms  converged to start of exposure (onCaptureStarted())
+ *   shutter.lag_ms       request to start of exposure
+ *   shutter.jpeg_ms      start of exposure to the JPEG being available
+ *
+ * All calls on the ops thread, except onJpegAvailable().
+ */
+public class PrecaptureSequencer {
+    private static final String TAG = "TBCamera_PRECAPTURE";
+
+    // Fire anyway if 3A hasn't converged by then.
+    private static final long CONVERGE_TIMEOUT_MS = 1000;
+    // Results after the precapture trigger in which AE may not have entered PRECAPTURE yet.
+    private static final int PRECAPTURE_START_FRAMES = 3;
+    // Shots exposed but without JPEG; past this many they are all given up on.
+    private static final int MAX_EXPOSED = 16;
+
+    /**
+     * Tag of trigger requests, so their results can be told apart.
+     */
+    public static final Object TRIGGER_TAG = new Object();
+
+    /**
+     * What the sequencer drives.
+     */
+    public interface Target {
+        /**
+         * One request on top of preview, tagged TRIGGER_TAG, with the given triggers.
+         */
+        void sendTriggers(boolean afTrigger, boolean precaptureTrigger);
+
+        /**
+         * Submit every still waiting for convergence.
+         */
+        void fire();
+
+        /**
+         * Cancel the AF trigger so continuous AF runs again.
+         */
+        void releaseFocus();
+    }
+
+    /**
+     * Timing of one still. Created when the shot is requested.
+     */
+    public static class Shot {
+        final long requestMs = SystemClock.elapsedRealtime();
+        long convergedMs;
+        long exposureMs;
+    }
+
+    private final Target mTarget;
+
+    // Latest from preview results.
+    private Integer mAeMode;
+    private Integer mAeState;
+    private Integer mAfState;
+    private Integer mAfMode;
+
+    // Shots waiting for 3A, and what was triggered for them.
+    private final List<Shot> mWaiting = new ArrayList<Shot>();
+    private long mWaitStartMs;
+    private boolean mAfTriggered;
+    private boolean mPrecaptureTriggered;
+    // Results from before the trigger request say nothing about it.
+    private boolean mTriggerSeen;
+    private int mFramesSinceTrigger;
+    private boolean mPrecaptureStarted;
+
+    // Shots exposed, by sensor timestamp, until their JPEG arrives. Guarded by itself.
+    private final Map<Long, Shot> mExposed = new HashMap<Long, Shot>();
+
+    public PrecaptureSequencer(Target target) {
+        mTarget = target;
+    }
+
+    /**
+     * A still was asked for; the target's fire() submits it.
+     */
+    public void request(Shot shot) {
+        mWaiting.add(shot);
+        if (mWaiting.size() > 1) {
+            // Goes out with the shot already waiting.
+            return;
+        }
+        mWaitStartMs = shot.requestMs;
+        mAfTriggered = needsAfTrigger();
+        mPrecaptureTriggered = needsPrecaptureTrigger();
+        if (!mAfTriggered && !mPrecaptureTriggered && isAeConverged()) {
+            MetricsRegistry.get().counter("shutter.immediate").increment();
+            fire("converged");
+            return;
+        }
+        mTriggerSeen = !mAfTriggered && !mPrecaptureTriggered;
+        mFramesSinceTrigger = 0;
+        mPrecaptureStarted = false;
+        if (mTriggerSeen) {
+            Log.v(TAG, "Waiting for AE to converge, " + stateString());
+            return;
+        }
+        Log.v(TAG, "Sending" + (mAfTriggered ? " AF" : "") + (mPrecaptureTriggered ? " precapture" : "")
+                + " trigger, " + stateString());
+        if (mAfTriggered) {
+            MetricsRegistry.get().counter("shutter.af_triggers").increment();
+        }
+        if (mPrecaptureTriggered) {
+            MetricsRegistry.get().counter("shutter.precapture_triggers").increment();
+        }
+        mTarget.sendTriggers(mAfTriggered, mPrecaptureTriggered);
+    }
+
+    /**
+     * Every result of the preview and trigger requests.
+     */
+    public void onPreviewResult(CaptureRequest request, CaptureResult result) {
+        mAeMode = result.get(CaptureResult.CONTROL_AE_MODE);
+        mAeState = result.get(CaptureResult.CONTROL_AE_STATE);
+        mAfState = result.get(CaptureResult.CONTROL_AF_STATE);
+        mAfMode = result.get(CaptureResult.CONTROL_AF_MODE);
+        if (mWaiting.isEmpty()) {
+            return;
+        }
+        if (request.getTag() == TRIGGER_TAG) {
+            mTriggerSeen = true;
+        }
+        boolean converged = false;
+        if (mTriggerSeen) {
+            mFramesSinceTrigger++;
+            if (mAeState != null && mAeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
+                mPrecaptureStarted = true;
+            }
+            boolean afDone = !mAfTriggered || mAfState == null
+                    || mAfState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED
+                    || mAfState == CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED;
+            boolean aeDone = isAeConverged() && (!mPrecaptureTriggered || mPrecaptureStarted
+                    || mFramesSinceTrigger > PRECAPTURE_START_FRAMES);
+            converged = afDone && aeDone;
+        }
+        // The timeout also covers a trigger request that never made it.
+        if (converged) {
+            fire("converged after " + mFramesSinceTrigger + " frames");
+        } else if (SystemClock.elapsedRealtime() - mWaitStartMs >= CONVERGE_TIMEOUT_MS) {
+            MetricsRegistry.get().counter("shutter.timeouts").increment();
+            fire("timed out, " + stateString());
+        }
+    }
+
+    /**
+     * A still from fire() started exposing.
+     */
+    public void onExposureStarted(Shot shot, long sensorTimestamp) {
+        shot.exposureMs = SystemClock.elapsedRealtime();
+        MetricsRegistry metrics = MetricsRegistry.get();
+        metrics.histogram("shutter.exposure_ms").record(shot.exposureMs - shot.convergedMs);
+        metrics.histogram("shutter.lag_ms").record(shot.exposureMs - shot.requestMs);
+        synchronized (mExposed) {
+            if (mExposed.size() >= MAX_EXPOSED) {
+                // JPEGs that never came; nothing left to time.
+                mExposed.clear();
+            }
+            mExposed.put(sensorTimestamp, shot);
+        }
+    }
+
+    /**
+     * A JPEG arrived. Any thread.
+     */
+    public void onJpegAvailable(long sensorTimestamp) {
+        Shot shot;
+        synchronized (mExposed) {
+            shot = mExposed.remove(sensorTimestamp);
+        }
+        if (shot == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        MetricsRegistry.get().histogram("shutter.jpeg_ms").record(now - shot.exposureMs);
+        Log.v(TAG, "Shot: converged +" + (shot.convergedMs - shot.requestMs) + " ms, exposure +"
+                + (shot.exposureMs - shot.requestMs) + " ms, JPEG +" + (now - shot.requestMs) + " ms");
+    }
+
+    /**
+     * Shots still waiting won't be taken, e.g. the camera is closing.
+     */
+    public void cancel() {
+        mWaiting.clear();
+        synchronized (mExposed) {
+            mExposed.clear();
+        }
+    }
+
+    private void fire(String why) {
+        long now = SystemClock.elapsedRealtime();
+        for (Shot shot : mWaiting) {
+            shot.convergedMs = now;
+            MetricsRegistry.get().histogram("shutter.converge_ms").record(now - shot.requestMs);
+        }
+        Log.v(TAG, mWaiting.size() + " still(s) fired " + (now - mWaitStartMs) + " ms after request, " + why);
+        mWaiting.clear();
+        mTarget.fire();
+        if (mAfTriggered) {
+            // Queued behind the stills, so they still see the lock.
+            mTarget.releaseFocus();
+        }
+        mAfTriggered = false;
+        mPrecaptureTriggered = false;
+    }
+
+    private boolean needsAfTrigger() {
+        if (mAfMode == null || mAfState == null) {
+            return false;
+        }
+        switch (mAfMode) {
+            case CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE:
+            case CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO:
+                // Trigger waits for the scan in progress; otherwise it would only lock where it is.
+                return mAfState == CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN;
+            case CaptureRequest.CONTROL_AF_MODE_AUTO:
+            case CaptureRequest.CONTROL_AF_MODE_MACRO:
+                return mAfState != CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED;
+            default:
+                // Fixed focus, EDOF or manual.
+                return false;
+        }
+    }
+
+    private boolean isAeManual() {
+        return mAeMode != null && mAeMode == CaptureRequest.CONTROL_AE_MODE_OFF;
+    }
+
+    private boolean needsPrecaptureTrigger() {
+        return mAeState != null && !isAeManual() && (mAeState == CaptureResult.CONTROL_AE_STATE_INACTIVE
+                || mAeState == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED);
+    }
+
+    private boolean isAeConverged() {
+        return mAeState == null || isAeManual() || mAeState == CaptureResult.CONTROL_AE_STATE_CONVERGED
+                || mAeState == CaptureResult.CONTROL_AE_STATE_LOCKED
+                || mAeState == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED;
+    }
+
+    private String stateString() {
+        return "AE state " + mAeState + ", AF state " + mAfState + " in mode " + mAfMode;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+
+/**
+ * Estimates sensor-to-display latency of preview frames from capture metadata and vsync.
+ *
+ * The preview buffer itself is never seen reaching the screen. What is measured is the time
+ * from the start of exposure (onCaptureStarted()) to the first vsync after the capture result
+ * arrives, plus one refresh (SurfaceFlinger latches on one vsync and scans out on the next).
+ * Buffers usually reach the compositor around the same time as their result, but the two are
+ * not tied together, so this is an estimate: preview.estimated_latency_ms. Vsync times come
+ * from Choreographer, which uses the System.nanoTime() clock, so sensor timestamps are moved
+ * to that clock first. Whether SENSOR_INFO_TIMESTAMP_SOURCE actually matches the timestamps is
+ * checked on the first frame.
+ *
+ * Everything runs on the thread that called start(), which must have a Looper.
+ */
+public class PreviewLatencyProbe implements Choreographer.FrameCallback {
+    private static final String TAG = "TBCamera_LATENCY";
+
+    // Sensor timestamps older than this when onCaptureStarted() runs mean a wrong timebase.
+    private static final long MAX_PLAUSIBLE_AGE_NS = 1000000000L;
+    private static final int MAX_PENDING = 16;
+    // Log a summary every this many samples.
+    private static final int REPORT_INTERVAL = 300;
+
+    private final boolean mSourceRealtime;
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+    private Choreographer mChoreographer;
+    private boolean mRunning;
+
+    // Added to a sensor timestamp to get System.nanoTime(); resolved on the first frame.
+    private long mSensorToMonoOffset;
+    private boolean mTimebaseChecked;
+    private boolean mTimebaseMismatch;
+    private boolean mTimebaseUsable;
+
+    // Frames completed but not yet matched to a vsync. Sensor times, already in nanoTime().
+    private final long[] mPending = new long[MAX_PENDING];
+    // When each pending frame completed, nanoTime().
+    private final long[] mPendingReady = new long[MAX_PENDING];
+    private int mPendingHead;
+    private int mPendingCount;
+    private int mOverflows;
+
+    private long mLastVsync;
+    private long mRefreshPeriodNs = 16666667;
+
+    /**
+     * @param sourceRealtime What CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE says.
+     */
+    public PreviewLatencyProbe(boolean sourceRealtime) {
+        mSourceRealtime = sourceRealtime;
+    }
+
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mChoreographer = Choreographer.getInstance();
+        mRunning = true;
+        mChoreographer.postFrameCallback(this);
+    }
+
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mChoreographer.removeFrameCallback(this);
+        Log.v(TAG, "Estimated preview latency at stop: " + summary());
+    }
+
+    public void onCaptureStarted(long sensorTimestamp) {
+        if (!mTimebaseChecked) {
+            checkTimebase(sensorTimestamp);
+        }
+    }
+
+    public void onCaptureCompleted(long sensorTimestamp) {
+        if (!mTimebaseUsable) {
+            return;
+        }
+        if (mPendingCount == MAX_PENDING) {
+            // No vsync for a while (screen off?), forget the oldest.
+            mPendingHead = (mPendingHead + 1) % MAX_PENDING;
+            mPendingCount--;
+            mOverflows++;
+        }
+        int slot = (mPendingHead + mPendingCount) % MAX_PENDING;
+        mPending[slot] = sensorTimestamp + mSensorToMonoOffset;
+        mPendingReady[slot] = System.nanoTime();
+        mPendingCount++;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) {
+            return;
+        }
+        if (mLastVsync > 0) {
+            long period = frameTimeNanos - mLastVsync;
+            // Skipped frames show up as multiples, only track plausible single periods.
+            if (period > 4000000 && period < mRefreshPeriodNs * 3 / 2) {
+                mRefreshPeriodNs = (mRefreshPeriodNs * 7 + period) / 8;
+            }
+        }
+        mLastVsync = frameTimeNanos;
+        long presentTime = frameTimeNanos + mRefreshPeriodNs;
+        // Frames that completed after this vsync go out on a later one.
+        while (mPendingCount > 0 && mPendingReady[mPendingHead] <= frameTimeNanos) {
+            mHistogram.add(presentTime - mPending[mPendingHead]);
+            MetricsRegistry.get().histogram("preview.estimated_latency_ms").record((presentTime - mPending[mPendingHead]) / 1e6);
+            mPendingHead = (mPendingHead + 1) % MAX_PENDING;
+            mPendingCount--;
+            if (mHistogram.getTotalSamples() % REPORT_INTERVAL == 0) {
+                Log.v(TAG, "Preview sensor->display latency, estimated: " + summary());
+            }
+        }
+        mChoreographer.postFrameCallback(this);
+    }
+
+    private void checkTimebase(long sensorTimestamp) {
+        mTimebaseChecked = true;
+        long mono = System.nanoTime();
+        long realtime = SystemClock.elapsedRealtimeNanos();
+        boolean looksRealtime = isPlausible(realtime - sensorTimestamp);
+        boolean looksMono = isPlausible(mono - sensorTimestamp);
+        // Before any suspend the two clocks agree, so both can match; trust the declared source then.
+        if (mSourceRealtime && looksRealtime) {
+            mSensorToMonoOffset = mono - realtime;
+            mTimebaseUsable = true;
+        } else if (!mSourceRealtime && looksMono) {
+            mSensorToMonoOffset = 0;
+            mTimebaseUsable = true;
+        } else if (looksRealtime || looksMono) {
+            mTimebaseMismatch = true;
+            mSensorToMonoOffset = looksRealtime ? mono - realtime : 0;
+            mTimebaseUsable = true;
+            Log.w(TAG, "Timestamp source says " + (mSourceRealtime ? "REALTIME" : "UNKNOWN")
+                    + " but timestamps look like " + (looksRealtime ? "elapsedRealtime" : "nanoTime")
+                    + ", using that.");
+        } else {
+            mTimebaseMismatch = true;
+            Log.w(TAG, "Sensor timestamp " + sensorTimestamp + " matches no known clock (nanoTime "
+                    + mono + ", elapsedRealtime " + realtime + "). Latency not measured.");
+        }
+    }
+
+    private static boolean isPlausible(long ageNs) {
+        return ageNs >= 0 && ageNs < MAX_PLAUSIBLE_AGE_NS;
+    }
+
+    public boolean isTimebaseMismatch() {
+        return mTimebaseMismatch;
+    }
+
+    public LatencyHistogram getHistogram() {
+        return mHistogram;
+    }
+
+    public String summary() {
+        return mHistogram.toString() + String.format(" refresh=%.2fms%s%s",
+                mRefreshPeriodNs / 1e6,
+                mTimebaseMismatch ? " TIMEBASE_MISMATCH" : "",
+                mOverflows > 0 ? " unmatched=" + mOverflows : "");
+    }
+
+    /**
+     * Rolling histogram over the last WINDOW samples, in 2 ms buckets.
+     */
+    public static class LatencyHistogram {
+        private static final int WINDOW = 256;
+        private static final long BUCKET_NS = 2000000;
+        private static final int NUM_BUCKETS = 128;
+
+        private final int[] mBuckets = new int[NUM_BUCKETS];
+        private final int[] mWindow = new int[WINDOW];
+        private int mWindowPos;
+        private int mWindowCount;
+        private long mTotalSamples;
+
+        public void add(long latencyNs) {
+            int bucket = (int) Math.max(0, Math.min(NUM_BUCKETS - 1, latencyNs / BUCKET_NS));
+            if (mWindowCount == WINDOW) {
+                mBuckets[mWindow[mWindowPos]]--;
+            } else {
+                mWindowCount++;
+            }
+            mWindow[mWindowPos] = bucket;
+            mWindowPos = (mWindowPos + 1) % WINDOW;
+            mBuckets[bucket]++;
+            mTotalSamples++;
+        }
+
+        public long getTotalSamples() {
+            return mTotalSamples;
+        }
+
+        public int getWindowCount() {
+            return mWindowCount;
+        }
+
+        /**
+         * Upper edge of the bucket holding the given percentile, in ms. -1 if empty.
+         */
+        public float percentileMs(float percentile) {
+            if (mWindowCount == 0) {
+                return -1;
+            }
+            int target = (int) Math.ceil(mWindowCount * percentile / 100f);
+            int seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += mBuckets[i];
+                if (seen >= target) {
+                    return (i + 1) * BUCKET_NS / 1e6f;
+                }
+            }
+            return NUM_BUCKETS * BUCKET_NS / 1e6f;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d p50<=%.0fms p90<=%.0fms p99<=%.0fms",
+                    mWindowCount, percentileMs(50), percentileMs(90), percentileMs(99));
+        }
+    }
+}
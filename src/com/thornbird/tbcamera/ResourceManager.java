@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Process-wide registry of the large allocations: image readers, the capture budget that
+ * bounds the saver queue, the capture index cache. Turns onTrimMemory() levels into a few
+ * trim stages and lets each resource give back what that stage allows.
+ *
+ * Stages only go up until reset(), which the activity calls when it comes back to the
+ * foreground; resources then return to their normal sizes.
+ *
+ * Thread safe. Resources are called on the thread that reported the memory level, usually
+ * the main thread, and post anything slow to their own threads.
+ */
+public class ResourceManager {
+    private static final String TAG = "TBCamera_RESOURCE";
+
+    public static final int TRIM_NONE = 0;
+    // Drop what is cheap to get back: idle buffers, caches.
+    public static final int TRIM_MODERATE = 1;
+    // Run smaller: fewer buffers in flight, optional streams off.
+    public static final int TRIM_LOW = 2;
+    // Only what preview and a single capture need.
+    public static final int TRIM_CRITICAL = 3;
+    private static final String[] TRIM_NAMES = {"none", "moderate", "low", "critical"};
+
+    /**
+     * A large allocation that can shrink.
+     */
+    public interface Resource {
+        String getName();
+
+        /**
+         * Bytes currently held, or reserved for buffers that may be allocated at any time.
+         */
+        long getBytes();
+
+        /**
+         * Go to a trim stage; TRIM_NONE restores normal operation.
+         * @return Bytes freed, or no longer allowed to be held, by this call. Work finished later
+         *         on another thread isn't counted here; the resource logs it itself.
+         */
+        long trim(int stage);
+    }
+
+    private static ResourceManager sInstance;
+
+    private final List<Resource> mResources = new CopyOnWriteArrayList<Resource>();
+    private int mStage = TRIM_NONE;
+    private long mReclaimedBytes;
+
+    public static synchronized ResourceManager get() {
+        if (sInstance == null) {
+            sInstance = new ResourceManager();
+        }
+        return sInstance;
+    }
+
+    private ResourceManager() {
+        MetricsRegistry.get().registerSource("memory.tracked_bytes", new MetricsRegistry.Source() {
+            @Override
+            public double getValue() {
+                return getTotalBytes();
+            }
+        });
+        MetricsRegistry.get().registerSource("memory.trim_stage", new MetricsRegistry.Source() {
+            @Override
+            public double getValue() {
+                return getStage();
+            }
+        });
+    }
+
+    /**
+     * Add a resource. It is trimmed right away if memory is already tight.
+     */
+    public void register(Resource resource) {
+        mResources.add(resource);
+        int stage = getStage();
+        if (stage != TRIM_NONE) {
+            apply(resource, stage);
+        }
+    }
+
+    public void unregister(Resource resource) {
+        mResources.remove(resource);
+    }
+
+    public synchronized int getStage() {
+        return mStage;
+    }
+
+    /**
+     * From Activity / Application onTrimMemory().
+     */
+    public void onTrimMemory(int level) {
+        int stage = stageForLevel(level);
+        synchronized (this) {
+            if (stage <= mStage) {
+                return;
+            }
+            mStage = stage;
+        }
+        long before = getTotalBytes();
+        long reclaimed = 0;
+        for (Resource resource : mResources) {
+            reclaimed += apply(resource, stage);
+        }
+        synchronized (this) {
+            mReclaimedBytes += reclaimed;
+        }
+        Log.v(TAG, "onTrimMemory(" + level + "): " + TRIM_NAMES[stage] + " trim reclaimed " + reclaimed
+                + " of " + before + " bytes");
+    }
+
+    public void onLowMemory() {
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    /**
+     * Memory is no longer known to be tight; everything goes back to normal size.
+     */
+    public void reset() {
+        synchronized (this) {
+            if (mStage == TRIM_NONE) {
+                return;
+            }
+            mStage = TRIM_NONE;
+        }
+        for (Resource resource : mResources) {
+            resource.trim(TRIM_NONE);
+        }
+        Log.v(TAG, "Trim reset, " + getTotalBytes() + " bytes registered");
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (Resource resource : mResources) {
+            total += resource.getBytes();
+        }
+        return total;
+    }
+
+    private static long apply(Resource resource, int stage) {
+        long held = resource.getBytes();
+        long reclaimed = resource.trim(stage);
+        Log.v(TAG, "  " + TRIM_NAMES[stage] + ": " + resource.getName() + " held " + held
+                + " bytes, reclaimed " + reclaimed);
+        return reclaimed;
+    }
+
+    private static int stageForLevel(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            // Next in line to be killed in the background.
+            return TRIM_CRITICAL;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return TRIM_LOW;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return TRIM_MODERATE;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return TRIM_CRITICAL;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return TRIM_LOW;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return TRIM_MODERATE;
+        }
+        return TRIM_NONE;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (this) {
+            sb.append("trim ").append(TRIM_NAMES[mStage]).append(", reclaimed ").append(mReclaimedBytes)
+                    .append(" bytes so far");
+        }
+        for (Resource resource : mResources) {
+            sb.append("\n  ").append(resource.getName()).append(": ").append(resource.getBytes())
+                    .append(" bytes");
+        }
+        return sb.toString();
+    }
+}
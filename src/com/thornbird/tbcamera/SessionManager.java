@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Decides which outputs the capture session is configured with, and which of them each
+ * capture mode's requests target.
+ *
+ * Every mode's streams are known up front, so the first session is configured with their
+ * union and switching modes only changes request targets. If the HAL refuses a configuration,
+ * optional streams are given up one at a time (RAW, then analysis, then JPEG). Only a mode
+ * that needs a stream the session lacks makes the session reconfigure.
+ *
+ * Time from setMode() to the first request of the new mode is recorded as session.toggle_ms,
+ * or session.reconfigure_ms when a new session was needed; session.configure_ms is
+ * createCaptureSession() to onConfigured().
+ *
+ * Thread safe, though the camera drives it from the ops thread.
+ */
+public class SessionManager {
+    private static final String TAG = "TBCamera_SESSION";
+
+    public static final int STREAM_PREVIEW = 1;
+    public static final int STREAM_JPEG = 1 << 1;
+    public static final int STREAM_ANALYSIS = 1 << 2;
+    public static final int STREAM_RAW = 1 << 3;
+
+    // Preview with statistics.
+    public static final int MODE_PREVIEW = 0;
+    // Single stills, RAW alongside when there is room.
+    public static final int MODE_STILL = 1;
+    // Stills scored by the statistics of the same frame.
+    public static final int MODE_BURST = 2;
+    // Stills at intervals; preview between them runs without statistics.
+    public static final int MODE_INTERVAL = 3;
+    private static final String[] MODE_NAMES = {"preview", "still", "burst", "interval"};
+
+    // Streams a mode can't work without, and ones it uses when they are there.
+    private static final int[] REQUIRED_STREAMS = {
+            STREAM_PREVIEW,
+            STREAM_PREVIEW | STREAM_JPEG,
+            STREAM_PREVIEW | STREAM_JPEG,
+            STREAM_PREVIEW | STREAM_JPEG,
+    };
+    private static final int[] OPTIONAL_STREAMS = {
+            STREAM_ANALYSIS,
+            STREAM_RAW,
+            STREAM_ANALYSIS,
+            STREAM_RAW,
+    };
+    // Given up in this order when a configuration fails.
+    private static final int[] FALLBACK_DROP_ORDER = {STREAM_RAW, STREAM_ANALYSIS, STREAM_JPEG};
+
+    private final int mAvailable;
+    // Streams of the live session, 0 if none.
+    private int mConfigured;
+    // Streams of the configuration in progress, 0 if none.
+    private int mConfiguring;
+    // Set after a failure: what to try next.
+    private int mNextAttempt;
+    private long mConfigureStartMs;
+
+    private int mMode = MODE_PREVIEW;
+    // A mode switch waiting for its first request, and whether it needed a new session.
+    private long mSwitchStartMs = -1;
+    private boolean mSwitchReconfigures;
+
+    /**
+     * @param rawAvailable Whether the camera has a usable RAW stream.
+     */
+    public SessionManager(boolean rawAvailable) {
+        mAvailable = STREAM_PREVIEW | STREAM_JPEG | STREAM_ANALYSIS | (rawAvailable ? STREAM_RAW : 0);
+    }
+
+    /**
+     * Streams every mode would like, for the first session.
+     */
+    public int getSupersetStreams() {
+        int streams = 0;
+        for (int i = 0; i < MODE_NAMES.length; i++) {
+            streams |= REQUIRED_STREAMS[i] | OPTIONAL_STREAMS[i];
+        }
+        return streams & mAvailable;
+    }
+
+    /**
+     * A session is about to be created.
+     * @return The streams to give it.
+     */
+    public synchronized int beginConfiguration() {
+        int streams;
+        if (mNextAttempt != 0) {
+            streams = mNextAttempt;
+        } else if (mConfigured == 0) {
+            streams = getSupersetStreams();
+        } else {
+            // Keep what the session had, add what the mode can't do without.
+            streams = (mConfigured | REQUIRED_STREAMS[mMode]) & mAvailable;
+        }
+        mNextAttempt = 0;
+        mConfiguring = streams;
+        mConfigureStartMs = SystemClock.elapsedRealtime();
+        Log.v(TAG, "Configuring " + streamNames(streams));
+        return streams;
+    }
+
+    public synchronized void onConfigured() {
+        long ms = SystemClock.elapsedRealtime() - mConfigureStartMs;
+        mConfigured = mConfiguring;
+        mConfiguring = 0;
+        MetricsRegistry.get().histogram("session.configure_ms").record(ms);
+        Log.v(TAG, "Configured " + streamNames(mConfigured) + " in " + ms + " ms");
+    }
+
+    /**
+     * The HAL refused the configuration.
+     * @return The smaller set of streams to try next, or 0 if there is nothing left to give up.
+     */
+    public synchronized int onConfigureFailed() {
+        int failed = mConfiguring;
+        mConfiguring = 0;
+        MetricsRegistry.get().counter("session.configure_failures").increment();
+        for (int stream : FALLBACK_DROP_ORDER) {
+            if ((failed & stream) != 0) {
+                mNextAttempt = failed & ~stream;
+                Log.w(TAG, "Could not configure " + streamNames(failed) + ", trying without "
+                        + streamNames(stream));
+                return mNextAttempt;
+            }
+        }
+        Log.e(TAG, "Could not configure " + streamNames(failed) + ", nothing left to drop");
+        return 0;
+    }
+
+    /**
+     * Switch modes.
+     * @return true if the session lacks a stream the mode needs and has to be reconfigured
+     *         before the mode's first request.
+     */
+    public synchronized boolean setMode(int mode) {
+        if (mode == mMode) {
+            return !hasAll(REQUIRED_STREAMS[mode]);
+        }
+        boolean reconfigure = !hasAll(REQUIRED_STREAMS[mode]);
+        Log.v(TAG, "Mode " + MODE_NAMES[mMode] + " -> " + MODE_NAMES[mode]
+                + (reconfigure ? ", needs " + streamNames(REQUIRED_STREAMS[mode] & ~mConfigured)
+                        : ", targets " + streamNames(getTargets(mode))));
+        mMode = mode;
+        mSwitchStartMs = SystemClock.elapsedRealtime();
+        mSwitchReconfigures = reconfigure;
+        return reconfigure;
+    }
+
+    public synchronized int getMode() {
+        return mMode;
+    }
+
+    /**
+     * The first request of the current mode went out.
+     */
+    public synchronized void onModeApplied() {
+        if (mSwitchStartMs < 0) {
+            return;
+        }
+        long ms = SystemClock.elapsedRealtime() - mSwitchStartMs;
+        mSwitchStartMs = -1;
+        MetricsRegistry metrics = MetricsRegistry.get();
+        if (mSwitchReconfigures) {
+            metrics.histogram("session.reconfigure_ms").record(ms);
+            metrics.counter("session.reconfigurations").increment();
+        } else {
+            metrics.histogram("session.toggle_ms").record(ms);
+            metrics.counter("session.toggles").increment();
+        }
+        Log.v(TAG, "Mode " + MODE_NAMES[mMode] + " applied in " + ms + " ms"
+                + (mSwitchReconfigures ? " with a new session" : ""));
+    }
+
+    /**
+     * Streams a mode's requests should target in the live session.
+     */
+    public synchronized int getTargets(int mode) {
+        return (REQUIRED_STREAMS[mode] | OPTIONAL_STREAMS[mode]) & mConfigured;
+    }
+
+    /**
+     * Whether the live session has the stream.
+     */
+    public synchronized boolean has(int stream) {
+        return (mConfigured & stream) == stream;
+    }
+
+    private boolean hasAll(int streams) {
+        return (mConfigured & streams) == streams;
+    }
+
+    private static String streamNames(int streams) {
+        StringBuilder sb = new StringBuilder("[");
+        String[] names = {"preview", "jpeg", "analysis", "raw"};
+        for (int i = 0; i < names.length; i++) {
+            if ((streams & (1 << i)) != 0) {
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(names[i]);
+            }
+        }
+        return sb.append(']').toString();
+    }
+}
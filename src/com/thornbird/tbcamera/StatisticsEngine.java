@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Per-frame image statistics from a luma plane:
+ *   - 256 bin luma histogram and mean
+ *   - fraction of pixels clipped to black / white
+ *   - sharpness: mean gradient energy (dx^2 + dy^2) inside a region of interest
+ *
+ * Rows are split between the calling thread and a few long-lived worker threads. Nothing is
+ * allocated per frame: the plane is read with absolute ByteBuffer gets, partial sums live in
+ * per-slice arrays, and results go into one of two FrameStatistics reused per Client.
+ *
+ * The worker threads can be shared by several cameras: each has its own Client with its ROI,
+ * clip thresholds and results. process() calls are serialized. Plain Java, no Android dependencies.
+ */
+public class StatisticsEngine {
+    private static final int DEFAULT_LOW_CLIP = 4;
+    private static final int DEFAULT_HIGH_CLIP = 251;
+
+    /**
+     * Results for one frame. Reused: each Client alternates between two instances, so a
+     * result stays valid until the next-but-one process() call for that Client. Use copyTo()
+     * to keep one.
+     */
+    public static class FrameStatistics {
+        public final int[] histogram = new int[256];
+        public long timestampNs;
+        public int width;
+        public int height;
+        public float meanLuma;
+        // Fraction of pixels <= low clip / >= high clip threshold.
+        public float lowClipRatio;
+        public float highClipRatio;
+        // Mean squared gradient per ROI pixel. Only comparable between frames of the same scene.
+        public float sharpness;
+        public long processingNs;
+
+        public void copyTo(FrameStatistics other) {
+            System.arraycopy(histogram, 0, other.histogram, 0, histogram.length);
+            other.timestampNs = timestampNs;
+            other.width = width;
+            other.height = height;
+            other.meanLuma = meanLuma;
+            other.lowClipRatio = lowClipRatio;
+            other.highClipRatio = highClipRatio;
+            other.sharpness = sharpness;
+            other.processingNs = processingNs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%dx%d mean=%.1f clip_low=%.3f clip_high=%.3f sharpness=%.1f in %.2fms",
+                    width, height, meanLuma, lowClipRatio, highClipRatio, sharpness, processingNs / 1e6);
+        }
+    }
+
+    /**
+     * Settings and result buffers of one user of the engine, e.g. one camera.
+     */
+    public static class Client {
+        private float mRoiLeftFrac = 0.25f;
+        private float mRoiTopFrac = 0.25f;
+        private float mRoiRightFrac = 0.75f;
+        private float mRoiBottomFrac = 0.75f;
+        private int mLowClip = DEFAULT_LOW_CLIP;
+        private int mHighClip = DEFAULT_HIGH_CLIP;
+
+        private final FrameStatistics[] mResults = {new FrameStatistics(), new FrameStatistics()};
+        private int mNextResult;
+
+        /**
+         * Region used for sharpness, as fractions of the frame.
+         */
+        public synchronized void setRoi(float left, float top, float right, float bottom) {
+            mRoiLeftFrac = left;
+            mRoiTopFrac = top;
+            mRoiRightFrac = right;
+            mRoiBottomFrac = bottom;
+        }
+
+        public synchronized void setClipThresholds(int low, int high) {
+            mLowClip = low;
+            mHighClip = high;
+        }
+    }
+
+    private final int mNumSlices;
+    private final Thread[] mWorkers;
+    private final Object mLock = new Object();
+    private int mGeneration;
+    private int mPendingSlices;
+    private boolean mRunning = true;
+
+    // Current frame, set before workers are released.
+    private ByteBuffer mPlane;
+    private int mWidth;
+    private int mHeight;
+    private int mRowStride;
+    private int mRoiLeft;
+    private int mRoiTop;
+    private int mRoiRight;
+    private int mRoiBottom;
+    private int mLowClip;
+    private int mHighClip;
+
+    // Per-slice partial results.
+    private final int[][] mSliceHistogram;
+    private final long[] mSliceSum;
+    private final int[] mSliceLow;
+    private final int[] mSliceHigh;
+    private final long[] mSliceEnergy;
+    private final int[] mSliceRoiPixels;
+
+    /**
+     * @param threads Total threads working on a frame, including the caller.
+     */
+    public StatisticsEngine(int threads) {
+        mNumSlices = Math.max(1, threads);
+        mSliceHistogram = new int[mNumSlices][256];
+        mSliceSum = new long[mNumSlices];
+        mSliceLow = new int[mNumSlices];
+        mSliceHigh = new int[mNumSlices];
+        mSliceEnergy = new long[mNumSlices];
+        mSliceRoiPixels = new int[mNumSlices];
+        mWorkers = new Thread[mNumSlices - 1];
+        for (int i = 0; i < mWorkers.length; i++) {
+            final int slice = i + 1;
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    workerLoop(slice);
+                }
+            }, "StatsWorker-" + slice);
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Compute statistics for one luma plane. Y planes of YUV_420_888 always have pixel stride 1.
+     * @return null once release() has been called.
+     */
+    public synchronized FrameStatistics process(Client client, ByteBuffer plane, int width, int height,
+            int rowStride, long timestampNs) {
+        long t0 = System.nanoTime();
+        mPlane = plane;
+        mWidth = width;
+        mHeight = height;
+        mRowStride = rowStride;
+        synchronized (client) {
+            mRoiLeft = clamp((int) (client.mRoiLeftFrac * width), 0, width - 1);
+            mRoiRight = clamp((int) (client.mRoiRightFrac * width), mRoiLeft + 1, width);
+            mRoiTop = clamp((int) (client.mRoiTopFrac * height), 0, height - 1);
+            mRoiBottom = clamp((int) (client.mRoiBottomFrac * height), mRoiTop + 1, height);
+            mLowClip = client.mLowClip;
+            mHighClip = client.mHighClip;
+        }
+
+        synchronized (mLock) {
+            if (!mRunning) {
+                return null;
+            }
+            mPendingSlices = mWorkers.length;
+            mGeneration++;
+            mLock.notifyAll();
+        }
+        processSlice(0);
+        // Workers still read mPlane and the slice arrays, so an interrupt can't cut this short;
+        // a slice is bounded work. The interrupt is kept for the caller.
+        boolean interrupted = false;
+        synchronized (mLock) {
+            while (mPendingSlices > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mPlane = null;
+
+        FrameStatistics stats = client.mResults[client.mNextResult];
+        client.mNextResult ^= 1;
+        long sum = 0;
+        long low = 0;
+        long high = 0;
+        long energy = 0;
+        long roiPixels = 0;
+        for (int b = 0; b < 256; b++) {
+            stats.histogram[b] = 0;
+        }
+        for (int s = 0; s < mNumSlices; s++) {
+            int[] h = mSliceHistogram[s];
+            for (int b = 0; b < 256; b++) {
+                stats.histogram[b] += h[b];
+            }
+            sum += mSliceSum[s];
+            low += mSliceLow[s];
+            high += mSliceHigh[s];
+            energy += mSliceEnergy[s];
+            roiPixels += mSliceRoiPixels[s];
+        }
+        float pixels = (float) width * height;
+        stats.timestampNs = timestampNs;
+        stats.width = width;
+        stats.height = height;
+        stats.meanLuma = sum / pixels;
+        stats.lowClipRatio = low / pixels;
+        stats.highClipRatio = high / pixels;
+        stats.sharpness = roiPixels > 0 ? (float) energy / roiPixels : 0;
+        stats.processingNs = System.nanoTime() - t0;
+        return stats;
+    }
+
+    /**
+     * Stop the worker threads. Waits for a process() call in progress to finish.
+     */
+    public synchronized void release() {
+        synchronized (mLock) {
+            mRunning = false;
+            mLock.notifyAll();
+        }
+    }
+
+    private void workerLoop(int slice) {
+        int seen = 0;
+        while (true) {
+            synchronized (mLock) {
+                while (mRunning && mGeneration == seen) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!mRunning) {
+                    return;
+                }
+                seen = mGeneration;
+            }
+            processSlice(slice);
+            synchronized (mLock) {
+                if (--mPendingSlices == 0) {
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void processSlice(int slice) {
+        final ByteBuffer plane = mPlane;
+        final int width = mWidth;
+        final int rowStride = mRowStride;
+        final int y0 = mHeight * slice / mNumSlices;
+        final int y1 = mHeight * (slice + 1) / mNumSlices;
+        final int lowClip = mLowClip;
+        final int highClip = mHighClip;
+        final int[] hist = mSliceHistogram[slice];
+        for (int b = 0; b < 256; b++) {
+            hist[b] = 0;
+        }
+        long sum = 0;
+        int low = 0;
+        int high = 0;
+        for (int y = y0; y < y1; y++) {
+            int row = y * rowStride;
+            for (int x = 0; x < width; x++) {
+                int v = plane.get(row + x) & 0xFF;
+                hist[v]++;
+                sum += v;
+                if (v <= lowClip) {
+                    low++;
+                } else if (v >= highClip) {
+                    high++;
+                }
+            }
+        }
+
+        // Gradient energy; the last ROI row/column has no forward neighbour.
+        long energy = 0;
+        int roiPixels = 0;
+        int gy0 = Math.max(y0, mRoiTop);
+        int gy1 = Math.min(y1, mRoiBottom - 1);
+        int gx1 = mRoiRight - 1;
+        for (int y = gy0; y < gy1; y++) {
+            int row = y * rowStride;
+            int next = row + rowStride;
+            for (int x = mRoiLeft; x < gx1; x++) {
+                int v = plane.get(row + x) & 0xFF;
+                int dx = (plane.get(row + x + 1) & 0xFF) - v;
+                int dy = (plane.get(next + x) & 0xFF) - v;
+                energy += dx * dx + dy * dy;
+            }
+            roiPixels += Math.max(0, gx1 - mRoiLeft);
+        }
+
+        mSliceSum[slice] = sum;
+        mSliceLow[slice] = low;
+        mSliceHigh[slice] = high;
+        mSliceEnergy[slice] = energy;
+        mSliceRoiPixels[slice] = roiPixels;
+    }
+
+    private static int clamp(int v, int min, int max) {
+        return v < min ? min : (v > max ? max : v);
+    }
+}
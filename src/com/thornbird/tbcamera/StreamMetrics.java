@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+/**
+ * Frame counters for one camera's streams, so cameras sharing a pipeline can be told apart.
+ *
+ * Preview frame rate is smoothed from sensor timestamps; a gap of more than 1.5 frame
+ * intervals counts the frames that should have been in it as skipped. Several long intervals
+ * in a row are a lower frame rate instead, e.g. AE in low light: the interval is re-seeded
+ * and they don't count as skips.
+ *
+ * Thread safe.
+ */
+public class StreamMetrics {
+    // This many long intervals in a row mean the frame rate changed.
+    private static final int RESEED_LONG_INTERVALS = 4;
+
+    private final String mCameraId;
+
+    private long mPreviewFrames;
+    private long mSkippedPreviewFrames;
+    private long mLastPreviewTimestamp;
+    // Smoothed preview frame interval.
+    private long mFrameIntervalNs;
+    // Long intervals in a row, and the frames they would skip at the current rate.
+    private int mLongIntervals;
+    private long mPendingSkips;
+
+    private int mStillsRequested;
+    private int mStillsSaved;
+    private int mStillsCulled;
+    private int mStillsFailed;
+
+    public StreamMetrics(String cameraId) {
+        mCameraId = cameraId;
+    }
+
+    public String getCameraId() {
+        return mCameraId;
+    }
+
+    /**
+     * Make the counters readable as "camera.<id>.*" gauges until unpublish().
+     */
+    public void publish(MetricsRegistry registry) {
+        String prefix = "camera." + mCameraId + ".";
+        registry.registerSource(prefix + "preview_fps", new MetricsRegistry.Source() {
+            @Override
+            public double getValue() {
+                return getPreviewFps();
+            }
+        });
+        registry.registerSource(prefix + "preview_frames", new MetricsRegistry.Source() {
+            @Override
+            public double getValue() {
+                return getPreviewFrames();
+            }
+        });
+        registry.registerSource(prefix + "preview_skipped", new MetricsRegistry.Source() {
+            @Override
+            public double getValue() {
+                return getSkippedPreviewFrames();
+            }
+        });
+        registry.registerSource(prefix + "stills_requested", new MetricsRegistry.Source() {
+            @Override
+            public double getValue() {
+                return getStillsRequested();
+            }
+        });
+        registry.registerSource(prefix + "stills_saved", new MetricsRegistry.Source() {
+            @Override
+            public double getValue() {
+                return getStillsSaved();
+            }
+        });
+        registry.registerSource(prefix + "stills_culled", new MetricsRegistry.Source() {
+            @Override
+            public double getValue() {
+                return getStillsCulled();
+            }
+        });
+        registry.registerSource(prefix + "stills_failed", new MetricsRegistry.Source() {
+            @Override
+            public double getValue() {
+                return getStillsFailed();
+            }
+        });
+    }
+
+    public void unpublish(MetricsRegistry registry) {
+        String prefix = "camera." + mCameraId + ".";
+        for (String name : new String[] {"preview_fps", "preview_frames", "preview_skipped", "stills_requested",
+                "stills_saved", "stills_culled", "stills_failed"}) {
+            registry.unregisterSource(prefix + name);
+        }
+    }
+
+    public synchronized void onPreviewFrame(long sensorTimestampNs) {
+        mPreviewFrames++;
+        if (mLastPreviewTimestamp > 0) {
+            long interval = sensorTimestampNs - mLastPreviewTimestamp;
+            if (mFrameIntervalNs == 0) {
+                mFrameIntervalNs = interval;
+            } else if (interval > mFrameIntervalNs * 3 / 2) {
+                mPendingSkips += Math.max(1, Math.round((double) interval / mFrameIntervalNs) - 1);
+                if (++mLongIntervals >= RESEED_LONG_INTERVALS) {
+                    mFrameIntervalNs = interval;
+                    mLongIntervals = 0;
+                    mPendingSkips = 0;
+                }
+            } else if (interval > 0) {
+                mSkippedPreviewFrames += mPendingSkips;
+                mLongIntervals = 0;
+                mPendingSkips = 0;
+                mFrameIntervalNs = (mFrameIntervalNs * 15 + interval) / 16;
+            }
+        }
+        mLastPreviewTimestamp = sensorTimestampNs;
+    }
+
+    /**
+     * The repeating request was stopped or replaced; the gap to the next frame isn't a skip.
+     */
+    public synchronized void onPreviewRestarted() {
+        mLastPreviewTimestamp = 0;
+        mSkippedPreviewFrames += mPendingSkips;
+        mLongIntervals = 0;
+        mPendingSkips = 0;
+    }
+
+    public synchronized void onStillRequested() {
+        mStillsRequested++;
+    }
+
+    public synchronized void onStillSaved() {
+        mStillsSaved++;
+    }
+
+    /**
+     * Left out on purpose, e.g. a burst frame that wasn't among the best.
+     */
+    public synchronized void onStillCulled() {
+        mStillsCulled++;
+    }
+
+    public synchronized void onStillFailed() {
+        mStillsFailed++;
+    }
+
+    public synchronized long getPreviewFrames() {
+        return mPreviewFrames;
+    }
+
+    public synchronized long getSkippedPreviewFrames() {
+        return mSkippedPreviewFrames;
+    }
+
+    public synchronized float getPreviewFps() {
+        return mFrameIntervalNs > 0 ? 1e9f / mFrameIntervalNs : 0;
+    }
+
+    public synchronized int getStillsRequested() {
+        return mStillsRequested;
+    }
+
+    public synchronized int getStillsSaved() {
+        return mStillsSaved;
+    }
+
+    public synchronized int getStillsCulled() {
+        return mStillsCulled;
+    }
+
+    public synchronized int getStillsFailed() {
+        return mStillsFailed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("camera %s: preview %d frames at %.1f fps, %d skipped; stills %d requested, "
+                        + "%d saved, %d culled, %d failed",
+                mCameraId, mPreviewFrames, getPreviewFps(), mSkippedPreviewFrames,
+                mStillsRequested, mStillsSaved, mStillsCulled, mStillsFailed);
+    }
+}
@@ -42,12 +42,16 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
 
 /**
  * A minimum camera app.
  * To keep it simple: portrait mode only.
  */
-public class TBCameraActivity extends Activity implements SurfaceHolder.Callback {
+public class TBCameraActivity extends Activity implements SurfaceHolder.Callback, MyCameraCallback {
     private static final String TAG = "TBCamera_UI";
 
     private static final boolean START_WITH_FRONT_CAMERA = false;    
@@ -80,6 +84,7 @@ public class TBCameraActivity extends Activity implements SurfaceHolder.Callback
         mPreviewView = (SurfaceView) findViewById(R.id.preview_view);
         mPreviewHolder = mPreviewView.getHolder();
         mPreviewHolder.addCallback(this);
+        setPreviewSurfaceSize();
 
         mMainHandler = new Handler(this.getApplicationContext().getMainLooper());
 
@@ -100,8 +105,17 @@ public class TBCameraActivity extends Activity implements SurfaceHolder.Callback
         }
         // --- SET UP CAMERA ---
         mCamera = new Api2Camera(this, frontCamera);
-        //mCamera.setCallback(this);
+        mCamera.setCallback(this);
         mCamera.openCamera();
+        setPreviewSurfaceSize();
+    }
+
+    // The session may be configured for this size before the Surface exists.
+    private void setPreviewSurfaceSize() {
+        if (mCamera != null && mPreviewHolder != null) {
+            Size size = mCamera.getPreviewSize();
+            mPreviewHolder.setFixedSize(size.getWidth(), size.getHeight());
+        }
     }
 
     // Initialize camera related UI and start camera; call openCamera first.
@@ -128,6 +142,8 @@ public class TBCameraActivity extends Activity implements SurfaceHolder.Callback
         super.onStart();
         // Leave screen on.
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        // Back in front: whatever was trimmed while hidden may grow again.
+        ResourceManager.get().reset();
 
         if (!checkPermissions()) return;
 
@@ -191,6 +207,33 @@ public class TBCameraActivity extends Activity implements SurfaceHolder.Callback
         super.onStop();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ResourceManager.get().onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        ResourceManager.get().onLowMemory();
+    }
+
+    /**
+     * adb shell dumpsys activity com.thornbird.tbcamera/.TBCameraActivity [--json]
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && Arrays.asList(args).contains("--json")) {
+            // Nothing else, so the output parses as one JSON object.
+            writer.println(MetricsRegistry.get().snapshotJson());
+            return;
+        }
+        super.dump(prefix, fd, writer, args);
+        writer.println(prefix + "TBCamera metrics:");
+        MetricsRegistry.get().dump(prefix + "  ", writer);
+        writer.println(prefix + "Memory: " + ResourceManager.get());
+    }
 
     long mJpegMillis = 0;
 
@@ -202,6 +245,21 @@ public class TBCameraActivity extends Activity implements SurfaceHolder.Callback
 
     }
 
+    @Override
+    public void receivedFirstFrame() {
+        Log.v(TAG, "First frame after " + (SystemClock.elapsedRealtime() - CameraTimer.t0) + " ms");
+    }
+
+    @Override
+    public void backpressureChanged(boolean throttled, long bytesInFlight) {
+        Log.v(TAG, (throttled ? "Captures throttled, " : "Captures resumed, ") + bytesInFlight + " bytes in flight");
+    }
+
+    @Override
+    public void frameDropped(int totalDropped) {
+        Log.w(TAG, "Capture dropped, total dropped = " + totalDropped);
+    }
+
 
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
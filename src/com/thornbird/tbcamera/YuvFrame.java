@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.thornbird.tbcamera;
+
+/**
+ * A planar 4:2:0 frame (I420 layout) with tightly packed planes.
+ * Width and height must be even. Plain Java, no Android dependencies.
+ */
+public class YuvFrame {
+    public final int width;
+    public final int height;
+    public final byte[] y;
+    public final byte[] u;
+    public final byte[] v;
+
+    /**
+     * Allocate a new frame.
+     */
+    public YuvFrame(int width, int height) {
+        this(width, height, new byte[width * height],
+                new byte[(width / 2) * (height / 2)], new byte[(width / 2) * (height / 2)]);
+    }
+
+    /**
+     * Wrap existing planes, no copy.
+     */
+    public YuvFrame(int width, int height, byte[] y, byte[] u, byte[] v) {
+        if ((width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("Odd frame size " + width + "x" + height);
+        }
+        if (y.length < width * height || u.length < (width / 2) * (height / 2)
+                || v.length < (width / 2) * (height / 2)) {
+            throw new IllegalArgumentException("Planes too small for " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.y = y;
+        this.u = u;
+        this.v = v;
+    }
+
+    public int getChromaWidth() {
+        return width / 2;
+    }
+
+    public int getChromaHeight() {
+        return height / 2;
+    }
+
+    public boolean isSameSize(YuvFrame other) {
+        return width == other.width && height == other.height;
+    }
+}